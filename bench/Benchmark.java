@@ -0,0 +1,67 @@
+/*
+ * This file is part of TTDViewer.
+ * TTDViewer is free software; you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, version 2.
+ * TTDViewer is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details. You should have received a copy of the GNU General Public License along with TTDViewer. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * A single benchmark, run by {@link Benchmarks}.
+ * The harness calls {@link #setup} once per input size, warms up by calling {@link #run} repeatedly,
+ * and then measures the average time per call.
+ */
+public abstract class Benchmark {
+	/** Name to select and report the benchmark. */
+	public final String name;
+
+	/** Whether the benchmark depends on the input size; if not, it is only run once. */
+	public final boolean sized;
+
+	/**
+	 * @param aName Name to select and report the benchmark.
+	 * @param aSized Whether the benchmark depends on the input size.
+	 */
+	protected Benchmark(String aName, boolean aSized)
+	{
+		name = aName;
+		sized = aSized;
+	}
+
+	/**
+	 * Test whether the benchmark can run with an input size; the harness reports other sizes as skipped.
+	 * @param aSize Number of pixels of the sprite sheet.
+	 * @return true if {@link #setup} accepts a sheet of this size.
+	 */
+	public boolean supports(long aSize)
+	{
+		return true;
+	}
+
+	/**
+	 * Prepare the input.
+	 * @param aSheet Synthetic sprite sheet of the size to measure; null if not {@link #sized}.
+	 */
+	public void setup(SpriteSheet aSheet) throws Exception
+	{
+	}
+
+	/**
+	 * Run one operation.
+	 * @return Some result of the operation, which is consumed by the harness so it cannot be optimised away.
+	 */
+	public abstract Object run() throws Exception;
+
+	/**
+	 * Additional result of the last {@link #run}, like the size of the output.
+	 * @return Text to report; null for none.
+	 */
+	public String getInfo()
+	{
+		return null;
+	}
+
+	/** Release the input of {@link #setup}. */
+	public void tearDown()
+	{
+	}
+}
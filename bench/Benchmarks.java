@@ -0,0 +1,685 @@
+/*
+ * This file is part of TTDViewer.
+ * TTDViewer is free software; you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, version 2.
+ * TTDViewer is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details. You should have received a copy of the GNU General Public License along with TTDViewer. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.regex.*;
+import java.awt.*;
+import java.awt.image.*;
+import javax.imageio.stream.*;
+import javax.swing.*;
+
+/**
+ * Benchmarks of the decode, recolor and render paths, using synthetic sprite sheets.
+ * Run 'make bench', or 'make bench BENCH_ARGS="-f recolor -s 1M"'; see {@link #printUsage}.
+ */
+public class Benchmarks {
+	/** Sink for the results of the benchmarks, so they cannot be optimised away. */
+	public static volatile int sink;
+
+	/** Default sizes of the sprite sheets. */
+	private static final String DEFAULT_SIZES = "64K,1M,16M,64M";
+
+	/** Recoloring of the company colors, like the recolor sprites of TTD. */
+	protected static Recoloring createCompanyRecoloring()
+	{
+		int[] remap = new int[256];
+		for (int i = 0; i < 256; i++) remap[i] = i;
+		for (int i = 0; i < 8; i++) remap[0xC6 + i] = 0x42 + i;
+		return new Recoloring(remap);
+	}
+
+	/**
+	 * Reference for "pcx.decode": the per-byte decoder PCX.loadFrom used before decoding scanlines from a bulk buffer.
+	 * Only kept to measure against; returns null for invalid images.
+	 */
+	protected static BufferedImage loadPCXPerByte(ImageInputStream aStream)
+	{
+		try {
+			PCX.Header header = PCX.Header.loadFrom(aStream);
+			if (header == null) return null;
+
+			WritableRaster raster = Raster.createInterleavedRaster(DataBuffer.TYPE_BYTE, header.size.width, header.size.height, 1, null);
+			int[] scanline = new int[header.bytes_per_line];
+
+			for (int y = 0; y < header.size.height; y++) {
+				int x = 0;
+				while (x < scanline.length) {
+					int b = aStream.readByte();
+					if ((b & 0xC0) == 0xC0) {
+						int count = b & 0x3F;
+						int val = aStream.readByte();
+						if (x + count > scanline.length) return null;
+						for (int i = 0; i < count; i++) {
+							scanline[x++] = val;
+						}
+					} else {
+						scanline[x++] = b;
+					}
+				}
+				raster.setSamples(0, y, header.size.width, 1, 0, scanline);
+				aStream.flush();
+			}
+
+			if (aStream.readByte() != 12) return null; // always 12
+
+			byte[] palette = new byte[256 * 3];
+			if (aStream.read(palette) != palette.length) return null;
+			ColorModel color_model = new IndexColorModel(8, 256, palette, 0, false);
+			return new BufferedImage(color_model, raster, false, null);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/** Recoloring on a ForkJoinPool with a fixed parallelism, to show the scaling of the parallel recoloring. */
+	protected static class ParallelRecoloringBenchmark extends Benchmark {
+		private final ForkJoinPool fPool;
+		private final Recoloring fRecoloring = createCompanyRecoloring();
+		private Raster fInput;
+		private WritableRaster fOutput;
+
+		public ParallelRecoloringBenchmark(int aThreads)
+		{
+			super("recolor.applyTo.threads" + aThreads, true);
+			fPool = new ForkJoinPool(aThreads);
+		}
+
+		@Override public void setup(SpriteSheet aSheet)
+		{
+			fInput = aSheet.image.getRaster();
+			fOutput = fInput.createCompatibleWritableRaster();
+		}
+
+		@Override public Object run() throws Exception
+		{
+			return fPool.submit(new Callable<WritableRaster>() {
+				@Override public WritableRaster call()
+				{
+					fRecoloring.applyTo(fInput, fOutput);
+					return fOutput;
+				}
+			}).get();
+		}
+	}
+
+	/** Discards the written data, only counting it. */
+	protected static class CountingOutputStream extends OutputStream {
+		public long count = 0;
+
+		@Override public void write(int b)
+		{
+			count++;
+		}
+
+		@Override public void write(byte[] b, int off, int len)
+		{
+			count += len;
+		}
+	}
+
+	/** PNG export at zoom 4 with specific compression options, reporting the size of the output. */
+	protected static class PNGExportBenchmark extends Benchmark {
+		private final PNG.Options fOptions;
+		private final Recoloring fRecoloring = createCompanyRecoloring();
+		private TTDImage fImage;
+		private IndexColorModel fColorModel;
+		private long fOutputSize;
+
+		public PNGExportBenchmark(int aLevel, int aFilter, int aThreads)
+		{
+			super("export.png.l" + aLevel + "." + PNG.FILTER_NAMES[aFilter] + ".threads" + aThreads, true);
+			fOptions = new PNG.Options(aLevel, aFilter, aThreads);
+		}
+
+		@Override public void setup(SpriteSheet aSheet)
+		{
+			fImage = new TTDImage(aSheet.image.getRaster());
+			fColorModel = new TTDPalette().getColorModel(false);
+		}
+
+		@Override public Object run() throws Exception
+		{
+			CountingOutputStream out = new CountingOutputStream();
+			PNG.saveTo(fImage, fColorModel, fRecoloring, 4, fOptions, out);
+			fOutputSize = out.count;
+			return out.count;
+		}
+
+		@Override public String getInfo()
+		{
+			return SpriteSheet.formatSize(fOutputSize / 1024 * 1024) + "B";
+		}
+	}
+
+	/**
+	 * Painting a 1280x800 viewport of the display at a zoom level, into an RGB image like the Swing back buffer.
+	 * Compares Java2D scaling an indexed image, which the display did before, with {@link IndexedRenderer}.
+	 */
+	protected static class ViewportPaintBenchmark extends Benchmark {
+		private final int fZoom;
+		private final boolean fLookupTable;
+		private final IndexedRenderer fRenderer = new IndexedRenderer();
+		private final Rectangle fViewport = new Rectangle(0, 0, 1280, 800);
+		private TTDImage fImage;
+		private IndexColorModel fColorModel;
+		private BufferedImage fScreen;
+		private Graphics2D fGraphics;
+
+		public ViewportPaintBenchmark(int aZoom, boolean aLookupTable)
+		{
+			super("paint." + (aLookupTable ? "lut" : "java2d") + ".zoom" + aZoom, false);
+			fZoom = aZoom;
+			fLookupTable = aLookupTable;
+		}
+
+		@Override public void setup(SpriteSheet aSheet)
+		{
+			fImage = new TTDImage(new SpriteSheet(4 << 20).image.getRaster());
+			fColorModel = new TTDPalette().getColorModel(false);
+			fScreen = new BufferedImage(fViewport.width, fViewport.height, BufferedImage.TYPE_INT_RGB);
+			fGraphics = fScreen.createGraphics();
+			/* Somewhere in the middle, not aligned to the zoom */
+			fGraphics.translate(-(500 * fZoom + fZoom / 2), -(400 * fZoom + fZoom / 2));
+			fViewport.setLocation(500 * fZoom + fZoom / 2, 400 * fZoom + fZoom / 2);
+			fGraphics.setClip(fViewport);
+		}
+
+		@Override public Object run()
+		{
+			if (fLookupTable) {
+				fRenderer.paint(fGraphics, fImage, fColorModel, fZoom, fViewport, fViewport.getSize());
+			} else {
+				int x = fViewport.x / fZoom;
+				int y = fViewport.y / fZoom;
+				int width = fViewport.width / fZoom + 2;
+				int height = fViewport.height / fZoom + 2;
+				fGraphics.drawImage(fImage.getImage(fColorModel, x, y, width, height), x * fZoom, y * fZoom, width * fZoom, height * fZoom, Color.WHITE, null);
+			}
+			return fScreen;
+		}
+
+		@Override public void tearDown()
+		{
+			if (fGraphics != null) fGraphics.dispose();
+			fImage = null;
+			fScreen = null;
+		}
+	}
+
+	/**
+	 * Panning a 1280x800 viewport by 8 pixels per frame, and painting all of it, like a drag does without blitting.
+	 * Compares rendering the whole frame with moving the cached frame and rendering the exposed strips.
+	 */
+	protected static class ScrollBenchmark extends Benchmark {
+		private final int fZoom;
+		private final boolean fCached;
+		private TTDDisplay fDisplay;
+		private JViewport fViewport;
+		private BufferedImage fScreen;
+		private int fStep = 0;
+
+		public ScrollBenchmark(int aZoom, boolean aCached)
+		{
+			super("scroll.zoom" + aZoom + "." + (aCached ? "cached" : "full"), false);
+			fZoom = aZoom;
+			fCached = aCached;
+		}
+
+		@Override public void setup(SpriteSheet aSheet) throws Exception
+		{
+			File file = File.createTempFile("bench", ".pcx");
+			file.deleteOnExit();
+			OutputStream out = new FileOutputStream(file);
+			try {
+				out.write(new SpriteSheet(4 << 20).getPCX());
+			} finally {
+				out.close();
+			}
+			fDisplay = new TTDDisplay(new TTDPalette());
+			fDisplay.loadFrom(file);
+			fDisplay.setZoom(fZoom);
+			fViewport = new JViewport();
+			fViewport.setView(fDisplay);
+			fViewport.setSize(1280, 800);
+			fViewport.setExtentSize(new Dimension(1280, 800));
+			fScreen = new BufferedImage(1280, 800, BufferedImage.TYPE_INT_RGB);
+		}
+
+		@Override public Object run()
+		{
+			/* Diagonal back and forth */
+			int pos = 8 * (fStep < 256 ? fStep : 511 - fStep);
+			fStep = (fStep + 1) % 512;
+			fViewport.setViewPosition(new Point(pos, pos));
+			if (!fCached) fDisplay.invalidateFrame();
+
+			Rectangle visible = fDisplay.getVisibleRect();
+			Graphics2D g = fScreen.createGraphics();
+			g.translate(-visible.x, -visible.y);
+			g.setClip(visible);
+			fDisplay.paintComponent(g);
+			g.dispose();
+			return fScreen;
+		}
+
+		@Override public void tearDown()
+		{
+			fDisplay = null;
+			fViewport = null;
+			fScreen = null;
+		}
+	}
+
+	/** All benchmarks. */
+	protected static Benchmark[] createBenchmarks()
+	{
+		return new Benchmark[] {
+			new Benchmark("pcx.decode", true) {
+				ByteBuffer fData;
+				@Override public void setup(SpriteSheet aSheet) throws Exception
+				{
+					fData = ByteBuffer.wrap(aSheet.getPCX());
+				}
+				@Override public Object run() throws Exception
+				{
+					return PCX.loadFrom(fData.duplicate());
+				}
+			},
+
+			new Benchmark("pcx.decode.perByte", true) {
+				byte[] fData;
+				@Override public void setup(SpriteSheet aSheet) throws Exception
+				{
+					fData = aSheet.getPCX();
+				}
+				@Override public Object run() throws Exception
+				{
+					return loadPCXPerByte(new MemoryCacheImageInputStream(new ByteArrayInputStream(fData)));
+				}
+			},
+
+			new Benchmark("png.createFrom", true) {
+				byte[] fData;
+				TTDPalette fPalette = new TTDPalette();
+				@Override public void setup(SpriteSheet aSheet) throws Exception
+				{
+					fData = aSheet.getPNG();
+				}
+				@Override public Object run() throws Exception
+				{
+					return TTDImage.createFrom(fPalette, new ByteArrayInputStream(fData));
+				}
+			},
+
+			new Benchmark("recolor.applyTo", true) {
+				Raster fInput;
+				WritableRaster fOutput;
+				Recoloring fRecoloring = createCompanyRecoloring();
+				@Override public void setup(SpriteSheet aSheet)
+				{
+					fInput = aSheet.image.getRaster();
+					fOutput = fInput.createCompatibleWritableRaster();
+				}
+				@Override public Object run()
+				{
+					fRecoloring.applyTo(fInput, fOutput);
+					return fOutput;
+				}
+			},
+
+			new ParallelRecoloringBenchmark(1),
+			new ParallelRecoloringBenchmark(2),
+			new ParallelRecoloringBenchmark(4),
+			new ParallelRecoloringBenchmark(8),
+
+			new Benchmark("render.zoom4", true) {
+				TTDImage fImage;
+				IndexColorModel fColorModel;
+				@Override public boolean supports(long aSize)
+				{
+					/* Zoomed output is 16 times the input, so limit the input */
+					return aSize <= (4 << 20);
+				}
+				@Override public void setup(SpriteSheet aSheet)
+				{
+					fImage = new TTDImage(aSheet.image.getRaster());
+					fColorModel = new TTDPalette().getColorModel(false);
+				}
+				@Override public Object run()
+				{
+					return fImage.createOutputImage(fColorModel, null, 4);
+				}
+			},
+
+			new Benchmark("render.recolor.zoom4", true) {
+				TTDImage fImage;
+				IndexColorModel fColorModel;
+				Recoloring fRecoloring = Recoloring.compose(createCompanyRecoloring(), TTDPalette.CONVERT_TO_WIN);
+				@Override public boolean supports(long aSize)
+				{
+					return aSize <= (4 << 20);
+				}
+				@Override public void setup(SpriteSheet aSheet)
+				{
+					fImage = new TTDImage(aSheet.image.getRaster());
+					fColorModel = new TTDPalette().getColorModel(false);
+				}
+				@Override public Object run()
+				{
+					return fImage.createOutputImage(fColorModel, fRecoloring, 4);
+				}
+			},
+
+			new Benchmark("export.png.imageio.zoom4", true) {
+				TTDImage fImage;
+				IndexColorModel fColorModel;
+				Recoloring fRecoloring = createCompanyRecoloring();
+				@Override public boolean supports(long aSize)
+				{
+					return aSize <= (4 << 20);
+				}
+				@Override public void setup(SpriteSheet aSheet)
+				{
+					fImage = new TTDImage(aSheet.image.getRaster());
+					fColorModel = new TTDPalette().getColorModel(false);
+				}
+				@Override public Object run() throws Exception
+				{
+					CountingOutputStream out = new CountingOutputStream();
+					javax.imageio.ImageIO.write(fImage.createOutputImage(fColorModel, fRecoloring, 4), "png", out);
+					return out.count;
+				}
+			},
+
+			new Benchmark("export.png.stream.zoom4", true) {
+				TTDImage fImage;
+				IndexColorModel fColorModel;
+				Recoloring fRecoloring = createCompanyRecoloring();
+				@Override public void setup(SpriteSheet aSheet)
+				{
+					/* Output is streamed, so any size works */
+					fImage = new TTDImage(aSheet.image.getRaster());
+					fColorModel = new TTDPalette().getColorModel(false);
+				}
+				@Override public Object run() throws Exception
+				{
+					CountingOutputStream out = new CountingOutputStream();
+					PNG.saveTo(fImage, fColorModel, fRecoloring, 4, new PNG.Options(), out);
+					return out.count;
+				}
+			},
+
+			new PNGExportBenchmark(1, PNG.FILTER_NONE, 1),
+			new PNGExportBenchmark(6, PNG.FILTER_NONE, 1),
+			new PNGExportBenchmark(9, PNG.FILTER_NONE, 1),
+			new PNGExportBenchmark(6, PNG.FILTER_SUB, 1),
+			new PNGExportBenchmark(6, PNG.FILTER_UP, 1),
+			new PNGExportBenchmark(6, PNG.FILTER_PAETH, 1),
+			new PNGExportBenchmark(6, PNG.FILTER_ADAPTIVE, 1),
+			new PNGExportBenchmark(6, PNG.FILTER_NONE, 2),
+			new PNGExportBenchmark(6, PNG.FILTER_NONE, 4),
+			new PNGExportBenchmark(6, PNG.FILTER_NONE, 8),
+
+			new ViewportPaintBenchmark(1, false),
+			new ViewportPaintBenchmark(1, true),
+			new ViewportPaintBenchmark(2, false),
+			new ViewportPaintBenchmark(2, true),
+			new ViewportPaintBenchmark(4, false),
+			new ViewportPaintBenchmark(4, true),
+			new ViewportPaintBenchmark(8, false),
+			new ViewportPaintBenchmark(8, true),
+			new ViewportPaintBenchmark(16, false),
+			new ViewportPaintBenchmark(16, true),
+
+			new ScrollBenchmark(1, false),
+			new ScrollBenchmark(1, true),
+			new ScrollBenchmark(4, false),
+			new ScrollBenchmark(4, true),
+
+			new Benchmark("recolor.definitions.xml", false) {
+				byte[] fData;
+				@Override public void setup(SpriteSheet aSheet) throws Exception
+				{
+					fData = RecolorDefinitions.readAll(RecolorDefinitions.class.getResourceAsStream("recolor.xml"));
+				}
+				@Override public Object run() throws Exception
+				{
+					return RecolorDefinitions.readXML(fData);
+				}
+			},
+
+			new Benchmark("recolor.definitions.load", false) {
+				@Override public Object run() throws Exception
+				{
+					return RecolorDefinitions.load("recolor.xml");
+				}
+			},
+
+			new Benchmark("recolor.then.inverse", false) {
+				Recoloring fRecoloring;
+				@Override public void setup(SpriteSheet aSheet)
+				{
+					/* Swap the first company color with another ramp, so the recoloring is a permutation */
+					int[] remap = new int[256];
+					for (int i = 0; i < 256; i++) remap[i] = i;
+					for (int i = 0; i < 8; i++) {
+						remap[0xC6 + i] = 0x42 + i;
+						remap[0x42 + i] = 0xC6 + i;
+					}
+					fRecoloring = new Recoloring(remap);
+
+					Recoloring identity = fRecoloring.then(fRecoloring.inverse());
+					for (int i = 0; i < 256; i++) {
+						if (identity.applyTo(i) != i) throw new IllegalStateException("then(inverse()) maps " + i + " to " + identity.applyTo(i));
+					}
+					if (TTDPalette.CONVERT_TO_WIN.inverse() != null) throw new IllegalStateException("WIN conversion must not be invertible");
+				}
+				@Override public Object run()
+				{
+					return fRecoloring.then(fRecoloring.inverse());
+				}
+			},
+
+			new Benchmark("recolor.transformPalette", false) {
+				Recoloring fRecoloring = createCompanyRecoloring();
+				int[] fPalette = TTDPalette.DOS_PALETTE.clone();
+				@Override public Object run()
+				{
+					return fRecoloring.transformPalette(fPalette);
+				}
+			},
+
+			new Benchmark("palette.getColorModel.cached", false) {
+				TTDPalette fPalette = new TTDPalette();
+				Recoloring fRecoloring = createCompanyRecoloring();
+				@Override public Object run()
+				{
+					return fPalette.getColorModel(fRecoloring, false);
+				}
+			},
+
+			new Benchmark("palette.getColorModel.animated", false) {
+				TTDPalette fPalette = new TTDPalette();
+				Recoloring fRecoloring = createCompanyRecoloring();
+				@Override public Object run()
+				{
+					fPalette.setAnimationCounter(fPalette.getAnimationCounter() + 8);
+					return fPalette.getColorModel(fRecoloring, false);
+				}
+			},
+
+			new Benchmark("palette.buildPalette", false) {
+				TTDPalette fPalette = new TTDPalette();
+				@Override public Object run()
+				{
+					fPalette.fAnimationCounter = (fPalette.fAnimationCounter + 8) & 0xFFFF;
+					fPalette.buildPalette();
+					return fPalette;
+				}
+			},
+
+			new Benchmark("palette.buildPalette.noTable", false) {
+				TTDPalette fPalette = new TTDPalette();
+				@Override public void setup(SpriteSheet aSheet)
+				{
+					fPalette.setUseFrameTable(false);
+				}
+				@Override public Object run()
+				{
+					fPalette.fAnimationCounter = (fPalette.fAnimationCounter + 8) & 0xFFFF;
+					fPalette.buildPalette();
+					return fPalette;
+				}
+			},
+		};
+	}
+
+	/** Result of measuring a benchmark. */
+	protected static class Result {
+		/** Mean time per operation in nanoseconds. */
+		public final double mean;
+
+		/** Standard deviation of the iterations in nanoseconds. */
+		public final double deviation;
+
+		public Result(double aMean, double aDeviation)
+		{
+			mean = aMean;
+			deviation = aDeviation;
+		}
+	}
+
+	/**
+	 * Warm up and measure a benchmark.
+	 * Each iteration calls the benchmark repeatedly for at least the given time.
+	 */
+	protected static Result measure(Benchmark aBenchmark, int aWarmups, int aIterations, long aIterationNanos) throws Exception
+	{
+		double[] times = new double[aIterations];
+		for (int i = -aWarmups; i < aIterations; i++) {
+			long ops = 0;
+			long start = System.nanoTime();
+			long elapsed;
+			do {
+				sink += System.identityHashCode(aBenchmark.run());
+				ops++;
+				elapsed = System.nanoTime() - start;
+			} while (elapsed < aIterationNanos);
+			if (i >= 0) times[i] = (double)elapsed / ops;
+		}
+
+		double sum = 0;
+		for (double t : times) sum += t;
+		double mean = sum / aIterations;
+		double squares = 0;
+		for (double t : times) squares += (t - mean) * (t - mean);
+		return new Result(mean, Math.sqrt(squares / aIterations));
+	}
+
+	/** Format nanoseconds with a suitable unit. */
+	protected static String formatTime(double aNanos)
+	{
+		if (aNanos >= 1e9) return String.format("%.2f s", aNanos / 1e9);
+		if (aNanos >= 1e6) return String.format("%.2f ms", aNanos / 1e6);
+		if (aNanos >= 1e3) return String.format("%.2f us", aNanos / 1e3);
+		return String.format("%.1f ns", aNanos);
+	}
+
+	protected static void printUsage()
+	{
+		System.out.println("Usage: Benchmarks [options]");
+		System.out.println("Options:");
+		System.out.println("  -f <regex>   Only run benchmarks whose name matches (default: all)");
+		System.out.println("  -s <sizes>   Comma separated sheet sizes in pixels (default: " + DEFAULT_SIZES + ")");
+		System.out.println("  -w <n>       Warmup iterations (default: 3)");
+		System.out.println("  -i <n>       Measured iterations (default: 5)");
+		System.out.println("  -t <ms>      Minimum time per iteration (default: 500)");
+		System.out.println("  -l           List the benchmarks");
+	}
+
+	public static void main(String[] aArgs) throws Exception
+	{
+		System.setProperty("java.awt.headless", "true");
+
+		Pattern filter = Pattern.compile(".*");
+		String sizes = DEFAULT_SIZES;
+		int warmups = 3;
+		int iterations = 5;
+		long iteration_nanos = 500 * 1000000L;
+		Benchmark[] benchmarks = createBenchmarks();
+
+		for (int i = 0; i < aArgs.length; i++) {
+			String arg = aArgs[i];
+			if (arg.equals("-l")) {
+				for (Benchmark benchmark : benchmarks) System.out.println(benchmark.name);
+				return;
+			} else if (i + 1 < aArgs.length && arg.equals("-f")) {
+				filter = Pattern.compile(".*(" + aArgs[++i] + ").*");
+			} else if (i + 1 < aArgs.length && arg.equals("-s")) {
+				sizes = aArgs[++i];
+			} else if (i + 1 < aArgs.length && arg.equals("-w")) {
+				warmups = Integer.parseInt(aArgs[++i]);
+			} else if (i + 1 < aArgs.length && arg.equals("-i")) {
+				iterations = Math.max(1, Integer.parseInt(aArgs[++i]));
+			} else if (i + 1 < aArgs.length && arg.equals("-t")) {
+				iteration_nanos = Long.parseLong(aArgs[++i]) * 1000000L;
+			} else {
+				printUsage();
+				System.exit(arg.equals("-h") ? 0 : 2);
+			}
+		}
+
+		System.out.println(String.format("%-32s %6s %14s %12s %12s  %s", "Benchmark", "Size", "Time/op", "Error", "MPixel/s", "Info"));
+		for (String size_arg : sizes.split(",")) {
+			long size = SpriteSheet.parseSize(size_arg);
+			SpriteSheet sheet = null;
+			for (Benchmark benchmark : benchmarks) {
+				if (!benchmark.sized || !filter.matcher(benchmark.name).matches()) continue;
+				if (!benchmark.supports(size)) {
+					System.out.println(String.format("%-32s %6s %14s", benchmark.name, SpriteSheet.formatSize(size), "skipped: size not supported"));
+					continue;
+				}
+				if (sheet == null) sheet = new SpriteSheet(size);
+				run(benchmark, sheet, warmups, iterations, iteration_nanos);
+			}
+		}
+		for (Benchmark benchmark : benchmarks) {
+			if (benchmark.sized || !filter.matcher(benchmark.name).matches()) continue;
+			run(benchmark, null, warmups, iterations, iteration_nanos);
+		}
+	}
+
+	/** Set up, measure and report a single benchmark for a sheet. */
+	private static void run(Benchmark aBenchmark, SpriteSheet aSheet, int aWarmups, int aIterations, long aIterationNanos) throws Exception
+	{
+		String size = (aSheet != null) ? SpriteSheet.formatSize(aSheet.size) : "-";
+		PrintStream out = System.out;
+		try {
+			/* Silence messages like the palette detection while measuring */
+			System.setOut(new PrintStream(new OutputStream() {
+				@Override public void write(int b)
+				{
+				}
+			}));
+			Result result;
+			try {
+				aBenchmark.setup(aSheet);
+				result = measure(aBenchmark, aWarmups, aIterations, aIterationNanos);
+			} finally {
+				System.setOut(out);
+			}
+			String throughput = (aSheet != null) ? String.format("%.1f", aSheet.size * 1e3 / result.mean) : "-";
+			String info = aBenchmark.getInfo();
+			System.out.println(String.format("%-32s %6s %14s %12s %12s  %s", aBenchmark.name, size, formatTime(result.mean), "+- " + formatTime(result.deviation), throughput, (info != null) ? info : ""));
+		} finally {
+			aBenchmark.tearDown();
+		}
+	}
+}
@@ -0,0 +1,118 @@
+/*
+ * This file is part of TTDViewer.
+ * TTDViewer is free software; you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, version 2.
+ * TTDViewer is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details. You should have received a copy of the GNU General Public License along with TTDViewer. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.*;
+import java.util.*;
+import java.awt.image.*;
+import javax.imageio.*;
+
+/**
+ * Synthetic sprite sheet in DOS palette.
+ * It consists of 64x64 cells with transparent borders and sprites made of runs of random colors,
+ * some of them animated or company colors, like real sprites.
+ */
+public class SpriteSheet {
+	/** Size of a cell of the sheet. */
+	public static final int CELL_SIZE = 64;
+
+	/** Number of pixels. */
+	public final long size;
+
+	/** The sheet with the DOS palette. */
+	public final BufferedImage image;
+
+	/** Encoded sheets, created on first use. */
+	private byte[] fPCX = null;
+	private byte[] fPNG = null;
+
+	/**
+	 * Create a square sheet.
+	 * @param aBytes Number of pixels; rounded to a square of a multiple of {@link #CELL_SIZE}.
+	 */
+	public SpriteSheet(long aBytes)
+	{
+		int side = (int)Math.sqrt((double)aBytes);
+		side = Math.max(CELL_SIZE, side / CELL_SIZE * CELL_SIZE);
+		size = (long)side * side;
+
+		byte[] r = new byte[256];
+		byte[] g = new byte[256];
+		byte[] b = new byte[256];
+		for (int i = 0; i < 256; i++) {
+			int c = TTDPalette.DOS_PALETTE[i];
+			r[i] = (byte)(c >> 16);
+			g[i] = (byte)(c >> 8);
+			b[i] = (byte)c;
+		}
+		image = new BufferedImage(side, side, BufferedImage.TYPE_BYTE_INDEXED, new IndexColorModel(8, 256, r, g, b));
+		byte[] pixels = ((DataBufferByte)image.getRaster().getDataBuffer()).getData();
+
+		Random random = new Random(side);
+		for (int cell_y = 0; cell_y < side; cell_y += CELL_SIZE) {
+			for (int cell_x = 0; cell_x < side; cell_x += CELL_SIZE) {
+				int border = 4 + random.nextInt(12);
+				for (int y = border; y < CELL_SIZE - border; y++) {
+					int x = border + random.nextInt(4);
+					int end = CELL_SIZE - border - random.nextInt(4);
+					while (x < end) {
+						int run = 1 + random.nextInt(8);
+						int color;
+						switch (random.nextInt(10)) {
+							case 0:  color = 0xE3 + random.nextInt(0xFE - 0xE3); break; // animated
+							case 1:  color = 0xC6 + random.nextInt(8);            break; // company colors
+							default: color = 0x01 + random.nextInt(0xC5);         break;
+						}
+						for (int i = 0; i < run && x < end; i++, x++) {
+							pixels[(cell_y + y) * side + cell_x + x] = (byte)color;
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/** Get the sheet encoded as .pcx. */
+	public synchronized byte[] getPCX() throws IOException
+	{
+		if (fPCX == null) fPCX = encode("pcx");
+		return fPCX;
+	}
+
+	/** Get the sheet encoded as .png. */
+	public synchronized byte[] getPNG() throws IOException
+	{
+		if (fPNG == null) fPNG = encode("png");
+		return fPNG;
+	}
+
+	private byte[] encode(String aFormat) throws IOException
+	{
+		PCX.registerImageIO();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		if (!ImageIO.write(image, aFormat, out)) throw new IOException("No writer for " + aFormat);
+		return out.toByteArray();
+	}
+
+	/** Format a number of bytes like 64K or 16M. */
+	public static String formatSize(long aBytes)
+	{
+		if (aBytes >= (1 << 20) && aBytes % (1 << 20) == 0) return (aBytes >> 20) + "M";
+		if (aBytes >= (1 << 10) && aBytes % (1 << 10) == 0) return (aBytes >> 10) + "K";
+		return String.valueOf(aBytes);
+	}
+
+	/** Parse a number of bytes like 64K or 16M. */
+	public static long parseSize(String aSize)
+	{
+		String size = aSize.trim().toUpperCase();
+		long factor = 1;
+		if (size.endsWith("K")) factor = 1 << 10;
+		if (size.endsWith("M")) factor = 1 << 20;
+		if (factor != 1) size = size.substring(0, size.length() - 1);
+		return Long.parseLong(size) * factor;
+	}
+}
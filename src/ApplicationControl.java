@@ -12,11 +12,32 @@ import java.util.*;
 /**
  * Class to keep track of open window instances.
  * When the last window is closed the application is terminated.
+ * It also drives the palette animation of all windows with a single clock.
  */
 public class ApplicationControl {
 
 	private static HashSet fWindows = new HashSet();
 
+	/** Palettes following the animation clock, in order of starting. */
+	private static LinkedHashSet<TTDPalette> fAnimatedPalettes = new LinkedHashSet<TTDPalette>();
+
+	/** Windows showing a palette; palettes of hidden or minimized windows are not animated. */
+	private static HashMap<TTDPalette, Window> fPaletteWindows = new HashMap<TTDPalette, Window>();
+
+	/** Animation counter of the clock, shared by all animated palettes. */
+	private static int fAnimationCounter = 0;
+
+	/** Timer for palette animation; runs only while there are animated palettes. */
+	private static javax.swing.Timer fAnimationTimer = new javax.swing.Timer(30, new ActionListener() {
+		@Override public void actionPerformed(ActionEvent evt)
+		{
+			fAnimationCounter = (fAnimationCounter + 8) & 0xFFFF;
+			for (TTDPalette palette : fAnimatedPalettes.toArray(new TTDPalette[fAnimatedPalettes.size()])) {
+				if (isWindowVisible(fPaletteWindows.get(palette))) palette.setAnimationCounter(fAnimationCounter);
+			}
+		}
+	});
+
 	/**
 	 * Deregister a window.
 	 * When the last window is deregistered, the application is closed.
@@ -24,6 +45,14 @@ public class ApplicationControl {
 	protected static void removeWindow(Window aWindow)
 	{
 		fWindows.remove(aWindow);
+		Iterator<Map.Entry<TTDPalette, Window>> it = fPaletteWindows.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<TTDPalette, Window> entry = it.next();
+			if (entry.getValue() == aWindow) {
+				stopAnimation(entry.getKey());
+				it.remove();
+			}
+		}
 		if (fWindows.isEmpty()) {
 			System.exit(0);
 		}
@@ -44,4 +73,48 @@ public class ApplicationControl {
 			});
 		}
 	}
+
+	/**
+	 * Register a newly opened window showing a palette.
+	 * The palette is not animated while the window is hidden or minimized.
+	 * @param aWindow Window to register.
+	 * @param aPalette Palette shown in the window.
+	 */
+	public static void addWindow(Window aWindow, TTDPalette aPalette)
+	{
+		fPaletteWindows.put(aPalette, aWindow);
+		addWindow(aWindow);
+	}
+
+	/** Test whether a window is shown and not minimized; null counts as visible. */
+	private static boolean isWindowVisible(Window aWindow)
+	{
+		if (aWindow == null) return true;
+		if (!aWindow.isShowing()) return false;
+		return !(aWindow instanceof Frame) || (((Frame)aWindow).getExtendedState() & Frame.ICONIFIED) == 0;
+	}
+
+	/**
+	 * Let a palette follow the animation clock.
+	 * It jumps to the current state of the clock, so all animated palettes are in phase.
+	 */
+	public static void startAnimation(TTDPalette aPalette)
+	{
+		if (!fAnimatedPalettes.add(aPalette)) return;
+		aPalette.setAnimationCounter(fAnimationCounter);
+		fAnimationTimer.start();
+	}
+
+	/** Stop a palette following the animation clock. It keeps its current state. */
+	public static void stopAnimation(TTDPalette aPalette)
+	{
+		fAnimatedPalettes.remove(aPalette);
+		if (fAnimatedPalettes.isEmpty()) fAnimationTimer.stop();
+	}
+
+	/** Get the animation counter of the clock. */
+	public static int getAnimationCounter()
+	{
+		return fAnimationCounter;
+	}
 }
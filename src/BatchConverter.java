@@ -0,0 +1,337 @@
+/*
+ * This file is part of TTDViewer.
+ * TTDViewer is free software; you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, version 2.
+ * TTDViewer is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details. You should have received a copy of the GNU General Public License along with TTDViewer. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+import java.nio.file.*;
+import java.awt.image.*;
+import javax.imageio.*;
+
+/**
+ * Converts images without opening any window, e.g. for asset pipelines.
+ * Images from the WIN palette are converted to the DOS palette, and can be recolored, zoomed, and saved as .png or .pcx.
+ * The files are processed in parallel on a work-stealing thread pool.
+ */
+public class BatchConverter {
+	/** Directory to write the converted images to. */
+	protected File fOutputDir = null;
+
+	/** Format name known to ImageIO, including "pcx". */
+	protected String fFormat = "png";
+
+	/** Zoom level. */
+	protected int fZoom = 1;
+
+	/** Save transparent pixels as blue pixels. */
+	protected boolean fTransparentAsBlue = false;
+
+	/** Climate for the palette; only Toyland makes a difference. */
+	protected int fClimate = TTDPalette.TEMPERATE;
+
+	/** Names of the recolorings from 'recolor.xml' to apply, in order. */
+	protected ArrayList<String> fRecolorNames = new ArrayList<String>();
+
+	/** Number of threads. */
+	protected int fThreads = Runtime.getRuntime().availableProcessors();
+
+	/** Compression of png output. The threads are set by {@link #run}. */
+	protected PNG.Options fPNGOptions = new PNG.Options();
+
+	/** Input files and their output path relative to {@link #fOutputDir}, in order of the arguments. */
+	protected LinkedHashMap<File, String> fInputs = new LinkedHashMap<File, String>();
+
+	/** Print the command line options. */
+	protected static void printUsage()
+	{
+		System.out.println("Usage: TTDViewer --batch [options] <file|directory|glob>...");
+		System.out.println("Options:");
+		System.out.println("  -o, --output <dir>      Directory for the converted images (required)");
+		System.out.println("  -f, --format <png|pcx>  Output format (default: png)");
+		System.out.println("  -r, --recolor <name>    Recoloring from recolor.xml, e.g. \"First Color/red\" or a sprite number; repeatable");
+		System.out.println("  -z, --zoom <n>          Zoom level (default: 1)");
+		System.out.println("  -b, --blue              Save transparent pixels as blue");
+		System.out.println("  -c, --climate <name>    temperate, arctic, tropic or toyland (default: temperate)");
+		System.out.println("  -j, --threads <n>       Number of threads (default: number of processors)");
+		System.out.println("  --png-level <0-9>       Deflate level of png output (default: 6)");
+		System.out.println("  --png-filter <name>     Row filter of png output: none, sub, up, average, paeth or adaptive (default: none)");
+		System.out.println("Directories are searched recursively, their structure is kept in the output directory.");
+		System.out.println("Globs like 'sprites/**/*.pcx' are expanded, if the shell did not do so.");
+	}
+
+	/** Get the value of an option. */
+	private static String getValue(String[] aArgs, int aIndex) throws Exception
+	{
+		if (aIndex >= aArgs.length) throw new Exception("Missing value for " + aArgs[aIndex - 1]);
+		return aArgs[aIndex];
+	}
+
+	/**
+	 * Parse the command line.
+	 * @param aArgs Arguments without the leading "--batch".
+	 */
+	protected void parseArguments(String[] aArgs) throws Exception
+	{
+		for (int i = 0; i < aArgs.length; i++) {
+			String arg = aArgs[i];
+			if (arg.equals("-o") || arg.equals("--output")) {
+				fOutputDir = new File(getValue(aArgs, ++i));
+			} else if (arg.equals("-f") || arg.equals("--format")) {
+				fFormat = getValue(aArgs, ++i).toLowerCase();
+			} else if (arg.equals("-r") || arg.equals("--recolor")) {
+				fRecolorNames.add(getValue(aArgs, ++i));
+			} else if (arg.equals("-z") || arg.equals("--zoom")) {
+				fZoom = Integer.parseInt(getValue(aArgs, ++i));
+				if (fZoom < 1) throw new Exception("Invalid zoom level: " + fZoom);
+			} else if (arg.equals("-b") || arg.equals("--blue")) {
+				fTransparentAsBlue = true;
+			} else if (arg.equals("-c") || arg.equals("--climate")) {
+				String climate = getValue(aArgs, ++i).toLowerCase();
+				if (climate.equals("temperate")) {
+					fClimate = TTDPalette.TEMPERATE;
+				} else if (climate.equals("arctic")) {
+					fClimate = TTDPalette.ARCTIC;
+				} else if (climate.equals("tropic")) {
+					fClimate = TTDPalette.TROPIC;
+				} else if (climate.equals("toyland")) {
+					fClimate = TTDPalette.TOYLAND;
+				} else {
+					throw new Exception("Unknown climate: " + climate);
+				}
+			} else if (arg.equals("-j") || arg.equals("--threads")) {
+				fThreads = Integer.parseInt(getValue(aArgs, ++i));
+				if (fThreads < 1) throw new Exception("Invalid number of threads: " + fThreads);
+			} else if (arg.equals("--png-level")) {
+				fPNGOptions.level = Integer.parseInt(getValue(aArgs, ++i));
+				if (fPNGOptions.level < 0 || fPNGOptions.level > 9) throw new Exception("Invalid png level: " + fPNGOptions.level);
+			} else if (arg.equals("--png-filter")) {
+				fPNGOptions.filter = PNG.parseFilter(getValue(aArgs, ++i));
+			} else if (arg.startsWith("-")) {
+				throw new Exception("Unknown option: " + arg);
+			} else {
+				addInput(arg);
+			}
+		}
+		if (fOutputDir == null) throw new Exception("No output directory given.");
+		if (fInputs.isEmpty()) throw new Exception("No input files found.");
+		if (!ImageIO.getImageWritersByFormatName(fFormat).hasNext()) throw new Exception("Unknown output format: " + fFormat);
+	}
+
+	/** Test whether a file looks like an image ImageIO can read. */
+	protected static boolean isImageFile(Path aPath)
+	{
+		String name = aPath.getFileName().toString().toLowerCase();
+		int dot = name.lastIndexOf('.');
+		if (dot < 0) return false;
+		return ImageIO.getImageReadersBySuffix(name.substring(dot + 1)).hasNext();
+	}
+
+	/**
+	 * Add files below a directory.
+	 * @param aBase Directory to search recursively.
+	 * @param aMatcher Matcher for the path relative to the directory; null to add all images.
+	 */
+	private void addTree(Path aBase, PathMatcher aMatcher) throws IOException
+	{
+		ArrayList<Path> paths = new ArrayList<Path>();
+		Stream<Path> walk = Files.walk(aBase);
+		try {
+			Iterator<Path> it = walk.iterator();
+			while (it.hasNext()) paths.add(it.next());
+		} finally {
+			walk.close();
+		}
+		Collections.sort(paths);
+		for (Path path : paths) {
+			if (!Files.isRegularFile(path)) continue;
+			if (aMatcher != null ? !aMatcher.matches(aBase.relativize(path)) : !isImageFile(path)) continue;
+			fInputs.put(path.toFile(), aBase.relativize(path).toString());
+		}
+	}
+
+	/**
+	 * Add a file, all images in a directory, or all files matching a glob.
+	 * @param aArg Command line argument.
+	 */
+	protected void addInput(String aArg) throws Exception
+	{
+		File file = new File(aArg);
+		if (file.isDirectory()) {
+			addTree(file.toPath(), null);
+		} else if (file.isFile()) {
+			fInputs.put(file, file.getName());
+		} else if (aArg.matches(".*[*?\\[{].*")) {
+			/* Walk from the deepest directory without glob characters, match the rest */
+			Path pattern = Paths.get(aArg);
+			int base_length = 0;
+			for (Path part : pattern) {
+				if (part.toString().matches(".*[*?\\[{].*")) break;
+				base_length++;
+			}
+			Path base = (base_length == 0) ? Paths.get(".") : pattern.subpath(0, base_length);
+			if (pattern.isAbsolute()) base = pattern.getRoot().resolve(base);
+			String rest = pattern.subpath(base_length, pattern.getNameCount()).toString();
+			int count = fInputs.size();
+			addTree(base, FileSystems.getDefault().getPathMatcher("glob:" + rest));
+			if (fInputs.size() == count) System.out.println("No files match " + aArg);
+		} else {
+			throw new Exception("File not found: " + aArg);
+		}
+	}
+
+	/** Get the output file for an input file. */
+	protected File getOutputFile(String aRelativePath)
+	{
+		int dot = aRelativePath.lastIndexOf('.');
+		int slash = aRelativePath.lastIndexOf(File.separatorChar);
+		if (dot > slash + 1) aRelativePath = aRelativePath.substring(0, dot);
+		return new File(fOutputDir, aRelativePath + "." + fFormat);
+	}
+
+	/**
+	 * Get the output files of all inputs, and test that no two inputs write to the same file.
+	 * This happens for inputs which differ only in the extension, like 'foo.pcx' and 'foo.png',
+	 * or for files of the same name from different directories given as separate arguments.
+	 * @return Output file per input file, in order of the inputs.
+	 * @throws Exception listing the inputs of each output file with several inputs.
+	 */
+	protected LinkedHashMap<File, File> getOutputFiles() throws Exception
+	{
+		LinkedHashMap<File, File> outputs = new LinkedHashMap<File, File>();
+		LinkedHashMap<File, ArrayList<File>> sources = new LinkedHashMap<File, ArrayList<File>>();
+		for (Map.Entry<File, String> input : fInputs.entrySet()) {
+			File output = getOutputFile(input.getValue());
+			outputs.put(input.getKey(), output);
+			File key = output.getCanonicalFile();
+			ArrayList<File> list = sources.get(key);
+			if (list == null) {
+				list = new ArrayList<File>();
+				sources.put(key, list);
+			}
+			list.add(input.getKey());
+		}
+
+		StringBuilder clashes = new StringBuilder();
+		for (Map.Entry<File, ArrayList<File>> source : sources.entrySet()) {
+			if (source.getValue().size() < 2) continue;
+			clashes.append("\n  ").append(source.getKey()).append(" <- ");
+			for (int i = 0; i < source.getValue().size(); i++) {
+				if (i > 0) clashes.append(", ");
+				clashes.append(source.getValue().get(i));
+			}
+		}
+		if (clashes.length() > 0) throw new Exception("Several inputs would be written to the same output file:" + clashes);
+		return outputs;
+	}
+
+	/**
+	 * Convert a single file.
+	 * @param aInput File to read.
+	 * @param aOutput File to write.
+	 * @param aPalette Palette for DOS/WIN detection.
+	 * @param aColorModel Color model of the output.
+	 * @param aRecoloring Recoloring to apply; null for none.
+	 */
+	protected void convert(File aInput, File aOutput, TTDPalette aPalette, IndexColorModel aColorModel, Recoloring aRecoloring) throws Exception
+	{
+		if (aOutput.getCanonicalFile().equals(aInput.getCanonicalFile())) throw new Exception("Output would overwrite the input.");
+		TTDImage image = TTDImage.createFrom(aPalette, aInput);
+		try {
+			File dir = aOutput.getParentFile();
+			if (dir != null) dir.mkdirs();
+			if (fFormat.equalsIgnoreCase("png")) {
+				PNG.saveTo(image, aColorModel, aRecoloring, fZoom, fPNGOptions, aOutput);
+				return;
+			}
+			BufferedImage output_image = image.createOutputImage(aColorModel, aRecoloring, fZoom);
+			if (!ImageIO.write(output_image, fFormat, aOutput)) {
+				throw new Exception("No writer for this file format available.");
+			}
+		} finally {
+			image.flush();
+		}
+	}
+
+	/**
+	 * Convert all input files.
+	 * @return Number of files which failed.
+	 */
+	public int run() throws Exception
+	{
+		final TTDPalette palette = new TTDPalette();
+		palette.setClimate(fClimate);
+		final IndexColorModel color_model = palette.getUnanimatedPalette().getColorModel(fTransparentAsBlue);
+
+		Recoloring recoloring = null;
+		for (int i = 0; i < fRecolorNames.size(); i++) {
+			Recoloring next = RecolorBrowser.findRecoloring(fRecolorNames.get(i));
+			recoloring = (recoloring == null) ? next : new Recoloring(new Recoloring[] {recoloring, next});
+		}
+		final Recoloring final_recoloring = recoloring;
+
+		LinkedHashMap<File, File> outputs = getOutputFiles();
+
+		/* Spare threads, if there are fewer files than threads, deflate chunks of each file in parallel */
+		fPNGOptions.threads = Math.max(1, fThreads / fInputs.size());
+
+		long start = System.nanoTime();
+		ExecutorService pool = Executors.newWorkStealingPool(fThreads);
+		LinkedHashMap<File, Future<?>> results = new LinkedHashMap<File, Future<?>>();
+		for (Map.Entry<File, File> input : outputs.entrySet()) {
+			final File input_file = input.getKey();
+			final File output_file = input.getValue();
+			results.put(input_file, pool.submit(new Callable<Void>() {
+				@Override public Void call() throws Exception
+				{
+					convert(input_file, output_file, palette, color_model, final_recoloring);
+					return null;
+				}
+			}));
+		}
+
+		int failed = 0;
+		for (Map.Entry<File, Future<?>> result : results.entrySet()) {
+			try {
+				result.getValue().get();
+			} catch (ExecutionException e) {
+				System.out.println(result.getKey() + ": " + e.getCause().getMessage());
+				failed++;
+			}
+		}
+		pool.shutdown();
+
+		double seconds = (System.nanoTime() - start) / 1e9;
+		int converted = results.size() - failed;
+		System.out.println(String.format("Converted %d files in %.2f s (%.1f files/s), %d failed.", converted, seconds, converted / seconds, failed));
+		return failed;
+	}
+
+	/**
+	 * Run the batch conversion and exit.
+	 * @param aArgs Arguments without the leading "--batch".
+	 */
+	public static void main(String[] aArgs)
+	{
+		System.setProperty("java.awt.headless", "true");
+		PCX.registerImageIO();
+		BatchConverter converter = new BatchConverter();
+		try {
+			converter.parseArguments(aArgs);
+		} catch (Exception e) {
+			System.out.println(e.getMessage());
+			printUsage();
+			System.exit(2);
+		}
+		try {
+			System.exit(converter.run() > 0 ? 1 : 0);
+		} catch (Exception e) {
+			System.out.println(e.getMessage());
+			System.exit(1);
+		}
+	}
+}
@@ -6,24 +6,52 @@
  */
 
 import java.io.*;
+import java.nio.file.*;
 import java.util.*;
-import java.awt.*;
-import java.awt.event.*;
+import java.util.concurrent.*;
 import javax.swing.*;
 import javax.swing.event.*;
 
 /**
  * Monitors files and notifies on modification/removal.
- * Implemented by polling the files every second.
+ * The directories of the files are watched by a WatchService; files in directories, which cannot be watched,
+ * are polled every second instead. Watched files are polled as well, but rarely, since a WatchService does not see
+ * changes made by other hosts on network file systems.
+ * Both is done by a background thread, the listeners are notified on the event dispatch thread.
+ * Changes are only reported once the file did not change for {@link #DEBOUNCE_MILLIS}, so bursts of writes result in a single
+ * notification after the file is complete.
  */
 public class FileMonitor {
+	/** Interval for polling files, which cannot be watched. */
+	public static final long POLL_MILLIS = 1000;
+
+	/** Interval for polling watched files, to notice changes the WatchService misses, e.g. on NFS or SMB shares. */
+	public static final long WATCHED_POLL_MILLIS = 10000;
+
+	/** Time a file has to be unchanged, before a change is reported. */
+	public static final long DEBOUNCE_MILLIS = 200;
+
 	/** Monitors a single file and maintains a list of listeners to notify. */
 	public static class MonitorItem extends DefaultChangeEventTrigger {
 		/** File to monitor */
 		private File fFile;
 
-		/** Last modification time of the file. */
+		/** Last modification time and length of the file, when the last change was reported. */
 		private long fLastModified;
+		private long fLength;
+
+		/** Last modification time and length of the file, when it was last checked while a change is pending. */
+		private long fCheckedModified;
+		private long fCheckedLength;
+
+		/** Time in ms, when to check a pending change again; 0 if no change is pending. */
+		private long fDeadline = 0;
+
+		/** Whether the WatchService reported a change, which has to be reported even if time and length are the same. */
+		private boolean fEventSeen = false;
+
+		/** Whether the directory is watched; else the file is polled. */
+		private boolean fWatched = false;
 
 		/**
 		 * Main constructor.
@@ -33,6 +61,7 @@ public class FileMonitor {
 		{
 			fFile = aFile;
 			fLastModified = aFile.lastModified();
+			fLength = aFile.length();
 		}
 
 		/**
@@ -45,33 +74,200 @@ public class FileMonitor {
 		}
 
 		/**
-		 * Check last modification time of the file against the value of the previous call, and
-		 * nofity all listeners if it changed.
+		 * Start or restart the debouncing of a change.
+		 * @param aNow Current time in ms.
+		 * @param aEvent Whether the change was reported by the WatchService.
 		 */
-		public void onTimer()
+		protected void changed(long aNow, boolean aEvent)
 		{
+			fCheckedModified = fFile.exists() ? fFile.lastModified() : 0;
+			fCheckedLength = fFile.length();
+			fDeadline = aNow + DEBOUNCE_MILLIS;
+			fEventSeen |= aEvent;
+		}
+
+		/** Check the modification time against the last reported one, and start debouncing if it changed. */
+		protected void poll(long aNow)
+		{
+			if (fDeadline != 0) return;
 			long last_modified = fFile.exists() ? fFile.lastModified() : 0;
-			if (last_modified != fLastModified)
-			{
-				fLastModified = last_modified;
-				fireChangeEvent();
+			if (last_modified != fLastModified || fFile.length() != fLength) changed(aNow, false);
+		}
+
+		/**
+		 * Check a pending change after its deadline.
+		 * The change is reported if the file did not change since the previous check, else the deadline is extended.
+		 */
+		protected void checkPending(long aNow)
+		{
+			if (fDeadline == 0 || aNow < fDeadline) return;
+			long last_modified = fFile.exists() ? fFile.lastModified() : 0;
+			long length = fFile.length();
+			if (last_modified != fCheckedModified || length != fCheckedLength) {
+				/* Still being written */
+				fCheckedModified = last_modified;
+				fCheckedLength = length;
+				fDeadline = aNow + DEBOUNCE_MILLIS;
+				return;
+			}
+
+			boolean report = fEventSeen || last_modified != fLastModified || length != fLength;
+			fDeadline = 0;
+			fEventSeen = false;
+			fLastModified = last_modified;
+			fLength = length;
+			if (report) {
+				SwingUtilities.invokeLater(new Runnable() {
+					@Override public void run()
+					{
+						fireChangeEvent();
+					}
+				});
 			}
 		}
 	};
 
-	/** Container for all monitored files. */
-	protected static HashMap fItems = new HashMap();
+	/** Container for all monitored files, by absolute path; guarded by itself. */
+	protected static HashMap<File, MonitorItem> fItems = new HashMap<File, MonitorItem>();
 
-	/** Timer checking all monitored files for modification. */
-	protected static javax.swing.Timer fTimer = new javax.swing.Timer(1000, new ActionListener() {
-		@Override public void actionPerformed(ActionEvent evt)
-		{
-			Iterator it = fItems.values().iterator();
-			while (it.hasNext()) {
-				((MonitorItem)it.next()).onTimer();
+	/** Watch service for the directories; null if not available. */
+	protected static WatchService fWatcher = null;
+
+	/** Watched directories. */
+	protected static HashMap<Path, WatchKey> fWatchKeys = new HashMap<Path, WatchKey>();
+
+	/** Thread checking all monitored files. */
+	protected static Thread fThread = null;
+
+	/** Start the monitor thread and the watch service, if not done yet. */
+	protected static void start()
+	{
+		if (fThread != null) return;
+		try {
+			fWatcher = FileSystems.getDefault().newWatchService();
+		} catch (IOException e) {
+			System.out.println("Watching files not available, polling instead: " + e.getMessage());
+			fWatcher = null;
+		}
+		fThread = new Thread("File monitor") {
+			@Override public void run()
+			{
+				try {
+					monitor();
+				} catch (InterruptedException e) {
+				} catch (ClosedWatchServiceException e) {
+				}
 			}
 		};
-	});
+		fThread.setDaemon(true);
+		fThread.start();
+	}
+
+	/**
+	 * Main loop of the monitor thread.
+	 * The files are only accessed outside of the {@link #fItems} lock, since that can take long on network drives,
+	 * while the event dispatch thread may be waiting for the lock to add or remove listeners.
+	 */
+	private static void monitor() throws InterruptedException
+	{
+		long next_poll = System.currentTimeMillis() + POLL_MILLIS;
+		long next_watched_poll = System.currentTimeMillis() + WATCHED_POLL_MILLIS;
+		while (true) {
+			long timeout;
+			synchronized (fItems) {
+				long wakeup = Math.min(next_poll, next_watched_poll);
+				for (MonitorItem item : fItems.values()) {
+					if (item.fDeadline != 0) wakeup = Math.min(wakeup, item.fDeadline);
+				}
+				timeout = Math.max(1, wakeup - System.currentTimeMillis());
+				if (fWatcher == null) fItems.wait(timeout);
+			}
+
+			WatchKey key = (fWatcher != null) ? fWatcher.poll(timeout, TimeUnit.MILLISECONDS) : null;
+
+			ArrayList<MonitorItem> items;
+			ArrayList<MonitorItem> changed = new ArrayList<MonitorItem>();
+			ArrayList<MonitorItem> polled = new ArrayList<MonitorItem>();
+			synchronized (fItems) {
+				/* Coalesce all events, which are already queued */
+				while (key != null) {
+					Path dir = (Path)key.watchable();
+					for (WatchEvent<?> event : key.pollEvents()) {
+						if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+							for (MonitorItem item : fItems.values()) {
+								if (item.fWatched && dir.equals(item.fFile.toPath().getParent())) changed.add(item);
+							}
+						} else {
+							MonitorItem item = fItems.get(dir.resolve((Path)event.context()).toFile());
+							if (item != null) changed.add(item);
+						}
+					}
+					if (!key.reset() && fWatchKeys.get(dir) == key) {
+						/* Directory is gone; poll its files, so they are noticed when it reappears */
+						fWatchKeys.remove(dir);
+						for (MonitorItem item : fItems.values()) {
+							if (item.fWatched && dir.equals(item.fFile.toPath().getParent())) {
+								item.fWatched = false;
+								changed.add(item);
+							}
+						}
+					}
+					key = fWatcher.poll();
+				}
+
+				long now = System.currentTimeMillis();
+				boolean poll = now >= next_poll;
+				if (poll) next_poll = now + POLL_MILLIS;
+				boolean watched_poll = now >= next_watched_poll;
+				if (watched_poll) next_watched_poll = now + WATCHED_POLL_MILLIS;
+				items = new ArrayList<MonitorItem>(fItems.values());
+				for (MonitorItem item : items) {
+					if (item.fWatched ? watched_poll : poll) polled.add(item);
+				}
+			}
+
+			/* The item state is only used by this thread, but the items may have been removed meanwhile; their listeners are gone then */
+			long now = System.currentTimeMillis();
+			for (MonitorItem item : changed) item.changed(now, true);
+			for (MonitorItem item : polled) item.poll(now);
+			for (MonitorItem item : items) item.checkPending(now);
+		}
+	}
+
+	/**
+	 * Watch the directory of an item, if possible.
+	 * Must be called with {@link #fItems} locked.
+	 */
+	private static void watch(MonitorItem aItem)
+	{
+		if (fWatcher == null) return;
+		Path dir = aItem.fFile.toPath().getParent();
+		if (dir == null) return;
+		if (!fWatchKeys.containsKey(dir)) {
+			try {
+				fWatchKeys.put(dir, dir.register(fWatcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE));
+			} catch (IOException e) {
+				System.out.println("Cannot watch " + dir + ", polling instead: " + e.getMessage());
+				return;
+			}
+		}
+		aItem.fWatched = true;
+	}
+
+	/**
+	 * Stop watching the directory of a removed item, if no other item is in it.
+	 * Must be called with {@link #fItems} locked.
+	 */
+	private static void unwatch(MonitorItem aItem)
+	{
+		if (!aItem.fWatched) return;
+		Path dir = aItem.fFile.toPath().getParent();
+		for (MonitorItem item : fItems.values()) {
+			if (item.fWatched && dir.equals(item.fFile.toPath().getParent())) return;
+		}
+		WatchKey key = fWatchKeys.remove(dir);
+		if (key != null) key.cancel();
+	}
 
 	/**
 	 * Register a listener to be notified on file changes.
@@ -80,15 +276,20 @@ public class FileMonitor {
 	 */
 	public static void addChangeListener(File aFile, ChangeListener l)
 	{
-		/* Lazily start the timer, we cannot do this statically. */
-		fTimer.start();
-
-		MonitorItem item = (MonitorItem)fItems.get(aFile);
-		if (item == null) {
-			item = new MonitorItem(aFile);
-			fItems.put(aFile, item);
+		File file = aFile.getAbsoluteFile();
+		/* Read the initial state of the file without holding the lock */
+		MonitorItem new_item = new MonitorItem(file);
+		synchronized (fItems) {
+			start();
+			MonitorItem item = fItems.get(file);
+			if (item == null) {
+				item = new_item;
+				fItems.put(file, item);
+				watch(item);
+				fItems.notifyAll();
+			}
+			item.addChangeListener(l);
 		}
-		item.addChangeListener(l);
 	}
 
 	/**
@@ -98,11 +299,15 @@ public class FileMonitor {
 	 */
 	public static void removeChangeListener(File aFile, ChangeListener l)
 	{
-		MonitorItem item = (MonitorItem)fItems.get(aFile);
-		if (item != null) {
-			item.removeChangeListener(l);
-			if (item.empty()) {
-				fItems.remove(aFile);
+		File file = aFile.getAbsoluteFile();
+		synchronized (fItems) {
+			MonitorItem item = fItems.get(file);
+			if (item != null) {
+				item.removeChangeListener(l);
+				if (item.empty()) {
+					fItems.remove(file);
+					unwatch(item);
+				}
 			}
 		}
 	}
@@ -113,11 +318,16 @@ public class FileMonitor {
 	 */
 	public static void removeChangeListener(ChangeListener l)
 	{
-		Iterator it = fItems.values().iterator();
-		while (it.hasNext()) {
-			MonitorItem item = (MonitorItem)it.next();
-			item.removeChangeListener(l);
-			if (item.empty()) it.remove();
+		synchronized (fItems) {
+			Iterator<MonitorItem> it = fItems.values().iterator();
+			while (it.hasNext()) {
+				MonitorItem item = it.next();
+				item.removeChangeListener(l);
+				if (item.empty()) {
+					it.remove();
+					unwatch(item);
+				}
+			}
 		}
 	}
 }
@@ -0,0 +1,122 @@
+/*
+ * This file is part of TTDViewer.
+ * TTDViewer is free software; you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, version 2.
+ * TTDViewer is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details. You should have received a copy of the GNU General Public License along with TTDViewer. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.awt.*;
+import java.awt.image.*;
+
+/**
+ * Renders a zoomed region of a {@link TTDImage} through a reusable RGB back buffer.
+ * The color indices are expanded via a lookup table directly into the int pixels of the buffer,
+ * so Java2D only has to copy the buffer, instead of converting and scaling an indexed image.
+ */
+public class IndexedRenderer {
+	/** Color shown for transparent pixels. */
+	public static final int BACKGROUND = 0xFFFFFF;
+
+	/** Back buffer; reused as long as it is large enough. */
+	private BufferedImage fBuffer = null;
+
+	/** Pixels of {@link #fBuffer}. */
+	private int[] fPixels;
+
+	/** RGB for each color index. */
+	private final int[] fLookupTable = new int[256];
+
+	/** Color model {@link #fLookupTable} was built from. */
+	private IndexColorModel fColorModel = null;
+
+	/** Build the lookup table, blending translucent colors with {@link #BACKGROUND}. */
+	protected void updateLookupTable(IndexColorModel aColorModel)
+	{
+		if (aColorModel == fColorModel) return;
+		for (int i = 0; i < 256; i++) {
+			int argb = (i < aColorModel.getMapSize()) ? aColorModel.getRGB(i) : 0;
+			int alpha = argb >>> 24;
+			int rgb = 0;
+			for (int shift = 0; shift < 24; shift += 8) {
+				int c = (argb >> shift) & 0xFF;
+				int b = (BACKGROUND >> shift) & 0xFF;
+				rgb |= ((c * alpha + b * (255 - alpha)) / 255) << shift;
+			}
+			fLookupTable[i] = rgb;
+		}
+		fColorModel = aColorModel;
+	}
+
+	/** Make sure the back buffer has at least the given size. */
+	protected void ensureBuffer(int aWidth, int aHeight)
+	{
+		if (fBuffer != null && fBuffer.getWidth() >= aWidth && fBuffer.getHeight() >= aHeight) return;
+		int width = Math.max(aWidth, (fBuffer != null) ? fBuffer.getWidth() : 0);
+		int height = Math.max(aHeight, (fBuffer != null) ? fBuffer.getHeight() : 0);
+		fBuffer = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		fPixels = ((DataBufferInt)fBuffer.getRaster().getDataBuffer()).getData();
+	}
+
+	/** Release the back buffer. */
+	public void flush()
+	{
+		fBuffer = null;
+		fPixels = null;
+	}
+
+	/**
+	 * Draw a region of the zoomed image.
+	 * @param g Graphics to draw to, in zoomed image coordinates.
+	 * @param aImage Image to draw.
+	 * @param aColorModel Colors of the image.
+	 * @param aZoom Zoom level.
+	 * @param aRegion Region of the zoomed image to draw; parts outside of the image are not touched.
+	 * @param aMinimumSize Minimum size of the back buffer, e.g. the visible size, to avoid growing it repeatedly.
+	 */
+	public void paint(Graphics g, TTDImage aImage, IndexColorModel aColorModel, int aZoom, Rectangle aRegion, Dimension aMinimumSize)
+	{
+		Dimension size = aImage.getSize();
+		Rectangle region = aRegion.intersection(new Rectangle(0, 0, size.width * aZoom, size.height * aZoom));
+		if (region.isEmpty()) return;
+
+		updateLookupTable(aColorModel);
+		ensureBuffer(Math.max(region.width, aMinimumSize.width), Math.max(region.height, aMinimumSize.height));
+		int stride = fBuffer.getWidth();
+
+		int source_x = region.x / aZoom;
+		int source_y = region.y / aZoom;
+		int source_width = (region.x + region.width - 1) / aZoom - source_x + 1;
+		int source_height = (region.y + region.height - 1) / aZoom - source_y + 1;
+		Raster source = aImage.getImage(aColorModel, new Rectangle(source_x, source_y, source_width, source_height)).getRaster();
+		byte[] row = new byte[source_width];
+
+		int phase = region.x - source_x * aZoom;
+		int previous_y = -1;
+		for (int y = 0; y < region.height; y++) {
+			int out = y * stride;
+			int sy = (region.y + y) / aZoom - source_y;
+			if (sy == previous_y) {
+				/* Repeated row due to zooming */
+				System.arraycopy(fPixels, out - stride, fPixels, out, region.width);
+				continue;
+			}
+			previous_y = sy;
+			source.getDataElements(source.getMinX(), source.getMinY() + sy, source_width, 1, row);
+
+			if (aZoom == 1) {
+				for (int x = 0; x < region.width; x++) fPixels[out + x] = fLookupTable[row[x] & 0xFF];
+				continue;
+			}
+			int end = out + region.width;
+			int run = aZoom - phase;
+			for (int sx = 0; out < end; sx++) {
+				int color = fLookupTable[row[sx] & 0xFF];
+				int run_end = Math.min(end, out + run);
+				while (out < run_end) fPixels[out++] = color;
+				run = aZoom;
+			}
+		}
+
+		g.drawImage(fBuffer, region.x, region.y, region.x + region.width, region.y + region.height, 0, 0, region.width, region.height, null);
+	}
+}
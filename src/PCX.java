@@ -8,14 +8,31 @@
 import java.io.*;
 import java.awt.*;
 import java.awt.image.*;
+import java.nio.*;
+import java.nio.channels.*;
 import javax.imageio.stream.*;
 
 /**
- * Simple class to load 256 color indexed .pcx files.
- *
- * TODO Add stuff to make it register to ImageIO itself.
+ * Simple class to load and save 256 color indexed .pcx files.
+ * Use {@link #registerImageIO} to make them available via ImageIO.
  */
 public class PCX {
+	/** Whether the ImageIO plugins are registered. */
+	private static boolean fRegistered = false;
+
+	/**
+	 * Register {@link PCXImageReader} and {@link PCXImageWriter} with ImageIO.
+	 * Repeated calls are ignored.
+	 */
+	public static synchronized void registerImageIO()
+	{
+		if (fRegistered) return;
+		fRegistered = true;
+		javax.imageio.spi.IIORegistry registry = javax.imageio.spi.IIORegistry.getDefaultInstance();
+		registry.registerServiceProvider(new PCXImageReader.Spi());
+		registry.registerServiceProvider(new PCXImageWriter.Spi());
+	}
+
 	/** Helper class to read/write headers of 256 color indexed .pcs files */
 	protected static class Header {
 		/** Size of the image */
@@ -45,44 +62,65 @@ public class PCX {
 			bytes_per_line = aBytesPerLine;
 		}
 
+		/** Size of the header in bytes */
+		public static final int SIZE = 128;
+
 		/**
-		 * Read a .pcx header from a stream.
+		 * Read a .pcx header from a buffer.
 		 * Only 256 color indexed .pcx are allowed.
-		 * @param aStream Stream to read from
+		 * @param aData Buffer to read from, positioned at the start of the header. On success it is positioned behind the header.
 		 * @return The read header, or null if no valid header was found.
 		 */
-		public static Header loadFrom(ImageInputStream aStream)
+		public static Header loadFrom(ByteBuffer aData)
 		{
 			try {
-				aStream.setByteOrder(java.nio.ByteOrder.LITTLE_ENDIAN);
-				if (aStream.readByte() != 10) return null; // always 10
-				if (aStream.readByte() != 5)  return null; // version: 5 for 256 colors
-				if (aStream.readByte() != 1)  return null; // always 1
-				if (aStream.readByte() != 8)  return null; // bits per plane: 8 for 256 colors
-				int xmin = aStream.readUnsignedShort();
-				int ymin = aStream.readUnsignedShort();
-				int xmax = aStream.readUnsignedShort();
-				int ymax = aStream.readUnsignedShort();
-				aStream.readUnsignedShort();               // horizontal dpi
-				aStream.readUnsignedShort();               // vertical dpi
-				aStream.skipBytes(48);                     // 16 color palette: unused
-				if (aStream.readByte() != 0) return null;  // always 0
-				if (aStream.readByte() != 1) return null;  // number of planes: 1 for 256 colors
-				int bytes_per_line_and_plane = aStream.readUnsignedShort();
-				aStream.readUnsignedShort();               // palette info: deprecated
-				aStream.readUnsignedShort();               // horizontal screen size: deprecated
-				aStream.readUnsignedShort();               // vertical screen size: deprecated
-				aStream.skipBytes(54);                     // fill to 128 bytes
+				ByteBuffer data = aData.slice().order(ByteOrder.LITTLE_ENDIAN);
+				if (data.get() != 10) return null; // always 10
+				if (data.get() != 5)  return null; // version: 5 for 256 colors
+				if (data.get() != 1)  return null; // always 1
+				if (data.get() != 8)  return null; // bits per plane: 8 for 256 colors
+				int xmin = data.getShort() & 0xFFFF;
+				int ymin = data.getShort() & 0xFFFF;
+				int xmax = data.getShort() & 0xFFFF;
+				int ymax = data.getShort() & 0xFFFF;
+				data.getShort();                          // horizontal dpi
+				data.getShort();                          // vertical dpi
+				data.position(data.position() + 48);      // 16 color palette: unused
+				if (data.get() != 0) return null;         // always 0
+				if (data.get() != 1) return null;         // number of planes: 1 for 256 colors
+				int bytes_per_line_and_plane = data.getShort() & 0xFFFF;
+				data.getShort();                          // palette info: deprecated
+				data.getShort();                          // horizontal screen size: deprecated
+				data.getShort();                          // vertical screen size: deprecated
+				data.position(data.position() + 54);      // fill to 128 bytes
 				int width = xmax - xmin + 1;
 				int height = ymax - ymin + 1;
 				if (width <= 0 || height <= 0 || width > bytes_per_line_and_plane) return null;
-				aStream.flush();
+				aData.position(aData.position() + SIZE);
 				return new Header(new Dimension(width, height), bytes_per_line_and_plane);
 			} catch (Exception e) {
 				return null;
 			}
 		}
 
+		/**
+		 * Read a .pcx header from a stream.
+		 * Only 256 color indexed .pcx are allowed.
+		 * @param aStream Stream to read from
+		 * @return The read header, or null if no valid header was found.
+		 */
+		public static Header loadFrom(ImageInputStream aStream)
+		{
+			try {
+				byte[] data = new byte[SIZE];
+				aStream.readFully(data);
+				aStream.flush();
+				return loadFrom(ByteBuffer.wrap(data));
+			} catch (Exception e) {
+				return null;
+			}
+		}
+
 		/**
 		 * Append the .pcx header to a stream.
 		 * @param aStream Stream to write to
@@ -115,9 +153,118 @@ public class PCX {
 		}
 	}
 
+	/**
+	 * Read all remaining bytes of a stream.
+	 * @param aStream Stream to read from
+	 * @return The remaining bytes
+	 */
+	protected static byte[] readRemaining(ImageInputStream aStream) throws IOException
+	{
+		long length = aStream.length();
+		if (length >= 0) {
+			byte[] data = new byte[(int)(length - aStream.getStreamPosition())];
+			aStream.readFully(data);
+			return data;
+		}
+
+		/* Length unknown, read chunkwise */
+		ByteArrayOutputStream data = new ByteArrayOutputStream();
+		byte[] chunk = new byte[65536];
+		int read;
+		while ((read = aStream.read(chunk)) > 0) {
+			data.write(chunk, 0, read);
+		}
+		return data.toByteArray();
+	}
+
+	/**
+	 * Decode the RLE compressed pixel data of a .pcx image directly into the backing array of a raster.
+	 * @param aData Compressed data, positioned at the first scanline. On success it is positioned behind the last scanline.
+	 * @param aHeader Header of the image
+	 * @param aPixels Backing array of the raster, using the image width as scanline stride.
+	 * @return false if the data is invalid.
+	 */
+	protected static boolean decodeScanlines(ByteBuffer aData, Header aHeader, byte[] aPixels)
+	{
+		int width = aHeader.size.width;
+		int bytes_per_line = aHeader.bytes_per_line;
+		int pos = aData.position();
+		int limit = aData.limit();
+		int out = 0;
+
+		for (int y = 0; y < aHeader.size.height; y++) {
+			int x = 0;
+			while (x < bytes_per_line) {
+				if (pos >= limit) return false;
+				int b = aData.get(pos++);
+				if ((b & 0xC0) == 0xC0) {
+					int count = b & 0x3F;
+					if (pos >= limit || x + count > bytes_per_line) return false;
+					byte val = aData.get(pos++);
+					/* Padding bytes behind the image width are dropped */
+					int end = Math.min(x + count, width);
+					if (end > x) java.util.Arrays.fill(aPixels, out + x, out + end, val);
+					x += count;
+				} else {
+					if (x < width) aPixels[out + x] = (byte)b;
+					x++;
+				}
+			}
+			out += width;
+		}
+
+		aData.position(pos);
+		return true;
+	}
+
+	/**
+	 * Decode a single RLE compressed scanline of a .pcx image.
+	 * @param aData Compressed data, positioned at the scanline. On success it is positioned behind the scanline.
+	 * @param aScanline Output for the scanline with a length of bytes_per_line; or null to skip the scanline.
+	 * @param aBytesPerLine Bytes per scanline
+	 * @return false if the data is invalid.
+	 */
+	protected static boolean decodeScanline(ByteBuffer aData, byte[] aScanline, int aBytesPerLine)
+	{
+		int pos = aData.position();
+		int limit = aData.limit();
+		int x = 0;
+		while (x < aBytesPerLine) {
+			if (pos >= limit) return false;
+			int b = aData.get(pos++);
+			if ((b & 0xC0) == 0xC0) {
+				int count = b & 0x3F;
+				if (pos >= limit || x + count > aBytesPerLine) return false;
+				byte val = aData.get(pos++);
+				if (aScanline != null) java.util.Arrays.fill(aScanline, x, x + count, val);
+				x += count;
+			} else {
+				if (aScanline != null) aScanline[x] = (byte)b;
+				x++;
+			}
+		}
+		aData.position(pos);
+		return true;
+	}
+
+	/**
+	 * Read the trailing palette of a .pcx image.
+	 * @param aData Data positioned at the palette marker.
+	 * @return The color model, or null if no valid palette was found.
+	 */
+	protected static IndexColorModel readPalette(ByteBuffer aData)
+	{
+		if (aData.remaining() < 1 + 256 * 3 || aData.get() != 12) return null; // always 12
+
+		byte[] palette = new byte[256 * 3];
+		aData.get(palette);
+		return new IndexColorModel(8, 256, palette, 0, false);
+	}
+
 	/**
 	 * Read a .pcx image from an ImageInputStream.
 	 * Only 256 color indexed .pcx are allowed.
+	 * The compressed data is read at once and decoded directly into the raster.
 	 * @param aStream Stream to read from
 	 * @return The read image, or null if no valid image was found.
 	 */
@@ -127,50 +274,195 @@ public class PCX {
 			Header header = Header.loadFrom(aStream);
 			if (header == null) return null;
 
+			ByteBuffer data = ByteBuffer.wrap(readRemaining(aStream));
+
 			WritableRaster raster = Raster.createInterleavedRaster(DataBuffer.TYPE_BYTE, header.size.width, header.size.height, 1, null);
-			int[] scanline = new int[header.bytes_per_line];
-
-			/* TODO this is quite slow */
-			for (int y = 0; y < header.size.height; y++) {
-				int x = 0;
-				while (x < scanline.length) {
-					int b = aStream.readByte();
-					if ((b & 0xC0) == 0xC0) {
-						int count = b & 0x3F;
-						int val = aStream.readByte();
-						if (x + count > scanline.length) return null;
-						for (int i = 0; i < count; i++) {
-							scanline[x++] = val;
-						}
-					} else {
-						scanline[x++] = b;
-					}
+			byte[] pixels = ((DataBufferByte)raster.getDataBuffer()).getData();
+			if (!decodeScanlines(data, header, pixels)) return null;
+
+			ColorModel color_model = readPalette(data);
+			if (color_model == null) return null;
+			return new BufferedImage(color_model, raster, false, null);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Random access to the scanlines of a .pcx image in a buffer.
+	 * RLE compressed rows cannot be located without decoding their predecessors, so the offsets of all
+	 * passed rows are remembered. Later accesses start at the nearest known row.
+	 */
+	protected static class Decoder {
+		/** Header of the image */
+		public final Header header;
+
+		/** Palette of the image */
+		public final IndexColorModel color_model;
+
+		/** Compressed data */
+		private final ByteBuffer fData;
+
+		/** Offsets of the scanlines in {@link #fData}, valid for the first {@link #fKnownRows} rows. */
+		private final int[] fRowOffsets;
+
+		/** Number of rows with known offset. */
+		private int fKnownRows = 1;
+
+		/**
+		 * Create a decoder for the data behind a header.
+		 * @param aHeader Header of the image
+		 * @param aData Compressed data positioned at the first scanline and ending with the palette.
+		 * @throws IOException if no valid palette was found.
+		 */
+		public Decoder(Header aHeader, ByteBuffer aData) throws IOException
+		{
+			header = aHeader;
+			fData = aData.duplicate();
+			if (fData.remaining() < 1 + 256 * 3) throw new IOException("Truncated PCX image.");
+
+			/* The palette is located at the end of the file. */
+			ByteBuffer palette = fData.duplicate();
+			palette.position(palette.limit() - 1 - 256 * 3);
+			color_model = readPalette(palette);
+			if (color_model == null) throw new IOException("Invalid PCX palette.");
+
+			fRowOffsets = new int[header.size.height];
+			fRowOffsets[0] = fData.position();
+		}
+
+		/**
+		 * Create a decoder for a complete .pcx file.
+		 * @param aData Buffer containing the file
+		 * @return The decoder, or null if no valid image was found.
+		 */
+		public static Decoder create(ByteBuffer aData)
+		{
+			try {
+				ByteBuffer data = aData.duplicate();
+				Header header = Header.loadFrom(data);
+				if (header == null) return null;
+				return new Decoder(header, data);
+			} catch (Exception e) {
+				return null;
+			}
+		}
+
+		/**
+		 * Decode the complete image.
+		 * @param aPixels Backing array of the raster, using the image width as scanline stride.
+		 * @return false if the data is invalid.
+		 */
+		public boolean decodeAll(byte[] aPixels)
+		{
+			ByteBuffer data = fData.duplicate();
+			data.position(fRowOffsets[0]);
+			return decodeScanlines(data, header, aPixels);
+		}
+
+		/**
+		 * Decode a subsampled region of the image into a raster.
+		 * Rows behind the region are not touched.
+		 * @param aSource Region of the image to decode
+		 * @param aXStep Horizontal subsampling
+		 * @param aYStep Vertical subsampling
+		 * @param aRaster Raster to decode into
+		 * @param aDest Region of the raster to fill; its size defines the number of decoded rows and columns.
+		 * @return false if the data is invalid.
+		 */
+		public synchronized boolean decode(Rectangle aSource, int aXStep, int aYStep, WritableRaster aRaster, Rectangle aDest)
+		{
+			if (aDest.width <= 0 || aDest.height <= 0) return true;
+
+			int bytes_per_line = header.bytes_per_line;
+			int first = aSource.y;
+			int last = aSource.y + (aDest.height - 1) * aYStep;
+			int y = Math.min(first, fKnownRows - 1);
+			ByteBuffer data = fData.duplicate();
+			data.position(fRowOffsets[y]);
+
+			byte[] scanline = new byte[bytes_per_line];
+			byte[] row = new byte[aDest.width];
+			for (; y <= last; y++) {
+				if (y >= fKnownRows) {
+					fRowOffsets[y] = data.position();
+					fKnownRows = y + 1;
 				}
-				raster.setSamples(0, y, header.size.width, 1, 0, scanline);
-				aStream.flush();
+				boolean wanted = y >= first && (y - first) % aYStep == 0;
+				if (!decodeScanline(data, wanted ? scanline : null, bytes_per_line)) return false;
+				if (!wanted) continue;
+
+				for (int x = 0; x < aDest.width; x++) {
+					row[x] = scanline[aSource.x + x * aXStep];
+				}
+				aRaster.setDataElements(aDest.x, aDest.y + (y - first) / aYStep, aDest.width, 1, row);
 			}
+			return true;
+		}
+	}
 
-			if (aStream.readByte() != 12) return null; // always 12
+	/**
+	 * Files of at least this size are memory-mapped by {@link #readFile}, smaller ones are read into the heap at once.
+	 * Mapping is not used for everything, since some systems do not allow modifying a file while it is mapped,
+	 * which would get into the way of artists saving the file while it is displayed.
+	 */
+	public static final long MAP_THRESHOLD = 16 << 20;
 
-			byte[] palette = new byte[256 * 3];
-			if (aStream.read(palette) != palette.length) return null;
-			ColorModel color_model = new IndexColorModel(8, 256, palette, 0, false);
-			return new BufferedImage(color_model, raster, false, null);
+	/**
+	 * Read a .pcx image from a buffer containing the complete file.
+	 * Only 256 color indexed .pcx are allowed.
+	 * The palette is read directly from the end of the buffer.
+	 * @param aData Buffer to read from
+	 * @return The read image, or null if no valid image was found.
+	 */
+	public static BufferedImage loadFrom(ByteBuffer aData)
+	{
+		try {
+			Decoder decoder = Decoder.create(aData);
+			if (decoder == null) return null;
+
+			WritableRaster raster = Raster.createInterleavedRaster(DataBuffer.TYPE_BYTE, decoder.header.size.width, decoder.header.size.height, 1, null);
+			if (!decoder.decodeAll(((DataBufferByte)raster.getDataBuffer()).getData())) return null;
+
+			return new BufferedImage(decoder.color_model, raster, false, null);
 		} catch (Exception e) {
 			return null;
 		}
 	}
 
+	/**
+	 * Make the content of a file accessible as buffer.
+	 * Large files are memory-mapped, see {@link #MAP_THRESHOLD}; smaller ones are read into the heap at once.
+	 * @param aFile File to read from
+	 * @return Buffer containing the complete file
+	 */
+	protected static ByteBuffer readFile(File aFile) throws IOException
+	{
+		FileChannel channel = new RandomAccessFile(aFile, "r").getChannel();
+		try {
+			long size = channel.size();
+			if (size >= MAP_THRESHOLD) return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+			ByteBuffer data = ByteBuffer.allocate((int)size);
+			while (data.hasRemaining() && channel.read(data) >= 0) {}
+			data.flip();
+			return data;
+		} finally {
+			channel.close();
+		}
+	}
+
 	/**
 	 * Read a .pcx image from a File.
 	 * Only 256 color indexed .pcx are allowed.
+	 * Large files are memory-mapped, see {@link #MAP_THRESHOLD}.
 	 * @param aFile File to read from
 	 * @return The read image, or null if no valid image was found.
 	 */
 	public static BufferedImage loadFrom(File aFile)
 	{
 		try {
-			return loadFrom(new FileImageInputStream(aFile));
+			return loadFrom(readFile(aFile));
 		} catch (Exception e) {
 			return null;
 		}
@@ -186,4 +478,144 @@ public class PCX {
 	{
 		return loadFrom(new MemoryCacheImageInputStream(aStream));
 	}
+
+	/**
+	 * RLE compress a scanline.
+	 * Runs do not cross the scanline, the line is padded with index 0 up to bytes_per_line.
+	 * @param aPixels Pixel data
+	 * @param aOffset Offset of the first pixel of the scanline in aPixels
+	 * @param aWidth Number of pixels in the scanline
+	 * @param aBytesPerLine Number of bytes to encode, i.e. aWidth plus padding
+	 * @param aOutput Output buffer, requires space for 2 * aBytesPerLine bytes
+	 * @param aOutputPos Position in aOutput to write to
+	 * @return Position in aOutput behind the written data
+	 */
+	protected static int encodeScanline(byte[] aPixels, int aOffset, int aWidth, int aBytesPerLine, byte[] aOutput, int aOutputPos)
+	{
+		int out = aOutputPos;
+		int x = 0;
+		while (x < aBytesPerLine) {
+			byte val = (x < aWidth) ? aPixels[aOffset + x] : 0;
+			int count = 1;
+			while (count < 0x3F && x + count < aBytesPerLine && ((x + count < aWidth) ? aPixels[aOffset + x + count] : 0) == val) count++;
+
+			if (count > 1 || (val & 0xC0) == 0xC0) aOutput[out++] = (byte)(0xC0 | count);
+			aOutput[out++] = val;
+			x += count;
+		}
+		return out;
+	}
+
+	/**
+	 * Largest width and height of a .pcx image.
+	 * The header stores the last column and row, and the even number of bytes per scanline, as 16 bit values.
+	 */
+	public static final int MAX_SIZE = 65534;
+
+	/**
+	 * Test whether an image can be saved as .pcx.
+	 * @param aImage Image to save
+	 * @return false if the image is no 256 color indexed image.
+	 * @throws IOException if the image is larger than {@link #MAX_SIZE}.
+	 */
+	protected static boolean canSave(BufferedImage aImage) throws IOException
+	{
+		if (!(aImage.getColorModel() instanceof IndexColorModel)) return false;
+		if (aImage.getRaster().getNumBands() != 1 || ((IndexColorModel)aImage.getColorModel()).getMapSize() > 256) return false;
+		if (aImage.getWidth() > MAX_SIZE || aImage.getHeight() > MAX_SIZE) {
+			throw new IOException(String.format("Image of %dx%d pixels is too large for PCX, which is limited to %dx%d pixels.", aImage.getWidth(), aImage.getHeight(), MAX_SIZE, MAX_SIZE));
+		}
+		return true;
+	}
+
+	/**
+	 * Save a 256 color indexed image as .pcx to an ImageOutputStream.
+	 * The scanlines are compressed directly from the backing array of the raster, if it is byte-interleaved.
+	 * @param aImage Image to save
+	 * @param aStream Stream to write to
+	 * @return false if the image is no 256 color indexed image.
+	 * @throws IOException if writing fails, or the image is larger than {@link #MAX_SIZE}.
+	 */
+	public static boolean saveTo(BufferedImage aImage, ImageOutputStream aStream) throws IOException
+	{
+		if (!canSave(aImage)) return false;
+		IndexColorModel color_model = (IndexColorModel)aImage.getColorModel();
+		WritableRaster raster = aImage.getRaster();
+
+		int width = raster.getWidth();
+		int height = raster.getHeight();
+		Header header = new Header(new Dimension(width, height));
+		header.saveTo(aStream);
+
+		/* Access the backing array directly, if possible. Otherwise copy each row. */
+		byte[] pixels;
+		int offset;
+		int stride;
+		SampleModel sample_model = raster.getSampleModel();
+		if (raster.getDataBuffer() instanceof DataBufferByte && sample_model instanceof ComponentSampleModel
+				&& ((ComponentSampleModel)sample_model).getPixelStride() == 1 && raster.getDataBuffer().getNumBanks() == 1) {
+			ComponentSampleModel component_model = (ComponentSampleModel)sample_model;
+			pixels = ((DataBufferByte)raster.getDataBuffer()).getData();
+			stride = component_model.getScanlineStride();
+			offset = raster.getDataBuffer().getOffset() + component_model.getOffset(raster.getMinX() - raster.getSampleModelTranslateX(), raster.getMinY() - raster.getSampleModelTranslateY());
+		} else {
+			pixels = null;
+			stride = 0;
+			offset = 0;
+		}
+
+		byte[] row = (pixels == null) ? new byte[width] : null;
+		int[] samples = (pixels == null) ? new int[width] : null;
+		byte[] output = new byte[Math.max(65536, 2 * header.bytes_per_line)];
+		int output_pos = 0;
+		for (int y = 0; y < height; y++) {
+			if (output.length - output_pos < 2 * header.bytes_per_line) {
+				aStream.write(output, 0, output_pos);
+				output_pos = 0;
+			}
+			if (pixels != null) {
+				output_pos = encodeScanline(pixels, offset + y * stride, width, header.bytes_per_line, output, output_pos);
+			} else {
+				raster.getSamples(raster.getMinX(), raster.getMinY() + y, width, 1, 0, samples);
+				for (int x = 0; x < width; x++) row[x] = (byte)samples[x];
+				output_pos = encodeScanline(row, 0, width, header.bytes_per_line, output, output_pos);
+			}
+		}
+		aStream.write(output, 0, output_pos);
+
+		byte[] palette = new byte[1 + 256 * 3];
+		palette[0] = 12; // always 12
+		for (int i = 0; i < color_model.getMapSize(); i++) {
+			int c = color_model.getRGB(i);
+			palette[1 + i * 3]     = (byte)(c >> 16);
+			palette[1 + i * 3 + 1] = (byte)(c >> 8);
+			palette[1 + i * 3 + 2] = (byte)c;
+		}
+		aStream.write(palette);
+		aStream.flush();
+		return true;
+	}
+
+	/**
+	 * Save a 256 color indexed image as .pcx to a File.
+	 * An existing file is overwritten, but only if the image can be saved.
+	 * @param aImage Image to save
+	 * @param aFile File to write to
+	 * @return false if the image is no 256 color indexed image.
+	 * @throws IOException if writing fails, or the image is larger than {@link #MAX_SIZE}.
+	 */
+	public static boolean saveTo(BufferedImage aImage, File aFile) throws IOException
+	{
+		if (!canSave(aImage)) return false;
+		RandomAccessFile file = new RandomAccessFile(aFile, "rw");
+		try {
+			file.setLength(0);
+			ImageOutputStream stream = new FileImageOutputStream(file);
+			boolean result = saveTo(aImage, stream);
+			stream.close();
+			return result;
+		} finally {
+			file.close();
+		}
+	}
 }
@@ -0,0 +1,180 @@
+/*
+ * This file is part of TTDViewer.
+ * TTDViewer is free software; you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, version 2.
+ * TTDViewer is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details. You should have received a copy of the GNU General Public License along with TTDViewer. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import java.awt.*;
+import java.awt.image.*;
+import javax.imageio.*;
+import javax.imageio.metadata.*;
+import javax.imageio.spi.*;
+import javax.imageio.stream.*;
+
+/**
+ * ImageIO reader for 256 color indexed .pcx files.
+ * Source regions and subsampling are supported; rows behind the source region are not decoded.
+ * Row offsets are remembered, so repeated reads of regions from the same input skip the preceding rows.
+ * @see PCX#registerImageIO
+ */
+public class PCXImageReader extends ImageReader {
+	/** Service provider for {@link PCXImageReader}. */
+	public static class Spi extends ImageReaderSpi {
+		public Spi()
+		{
+			super("TTDViewer", "1.0", new String[] {"pcx", "PCX"}, new String[] {"pcx"}, new String[] {"image/pcx", "image/x-pcx"},
+					"PCXImageReader", new Class<?>[] {ImageInputStream.class}, new String[] {"PCXImageWriter$Spi"},
+					false, null, null, null, null, false, null, null, null, null);
+		}
+
+		/**
+		 * Test whether the source starts with a valid header of a 256 color indexed .pcx.
+		 * Only the 128 bytes of the header are read; the stream position is restored.
+		 */
+		@Override public boolean canDecodeInput(Object aSource) throws IOException
+		{
+			if (!(aSource instanceof ImageInputStream)) return false;
+			ImageInputStream stream = (ImageInputStream)aSource;
+			byte[] data = new byte[PCX.Header.SIZE];
+			stream.mark();
+			try {
+				stream.readFully(data);
+			} catch (EOFException e) {
+				return false;
+			} finally {
+				stream.reset();
+			}
+			return PCX.Header.loadFrom(ByteBuffer.wrap(data)) != null;
+		}
+
+		@Override public String getDescription(Locale aLocale)
+		{
+			return "256 color indexed PCX image reader";
+		}
+
+		@Override public ImageReader createReaderInstance(Object aExtension)
+		{
+			return new PCXImageReader(this);
+		}
+	}
+
+	/** Header of the current input; null if not read yet. */
+	private PCX.Header fHeader = null;
+
+	/** Decoder for the scanlines of the current input; null if not read yet. */
+	private PCX.Decoder fDecoder = null;
+
+	public PCXImageReader(ImageReaderSpi aOriginator)
+	{
+		super(aOriginator);
+	}
+
+	@Override public void setInput(Object aInput, boolean aSeekForwardOnly, boolean aIgnoreMetadata)
+	{
+		super.setInput(aInput, aSeekForwardOnly, aIgnoreMetadata);
+		fHeader = null;
+		fDecoder = null;
+	}
+
+	/** Read the header from the input, if not done yet. */
+	private void readHeader() throws IOException
+	{
+		if (fHeader != null) return;
+		if (input == null) throw new IllegalStateException("No input set.");
+		fHeader = PCX.Header.loadFrom((ImageInputStream)input);
+		if (fHeader == null) throw new IIOException("Invalid PCX header.");
+	}
+
+	/** Read the rest of the input, if not done yet. */
+	private void readData() throws IOException
+	{
+		readHeader();
+		if (fDecoder != null) return;
+		fDecoder = new PCX.Decoder(fHeader, ByteBuffer.wrap(PCX.readRemaining((ImageInputStream)input)));
+	}
+
+	private void checkIndex(int aImageIndex)
+	{
+		if (aImageIndex != 0) throw new IndexOutOfBoundsException("PCX files contain only one image.");
+	}
+
+	@Override public int getNumImages(boolean aAllowSearch)
+	{
+		return 1;
+	}
+
+	@Override public int getWidth(int aImageIndex) throws IOException
+	{
+		checkIndex(aImageIndex);
+		readHeader();
+		return fHeader.size.width;
+	}
+
+	@Override public int getHeight(int aImageIndex) throws IOException
+	{
+		checkIndex(aImageIndex);
+		readHeader();
+		return fHeader.size.height;
+	}
+
+	@Override public Iterator<ImageTypeSpecifier> getImageTypes(int aImageIndex) throws IOException
+	{
+		checkIndex(aImageIndex);
+		readData();
+		IndexColorModel color_model = fDecoder.color_model;
+		/* Use the sample model of TYPE_BYTE_INDEXED, IndexColorModel.createCompatibleSampleModel is too generic for that */
+		ImageTypeSpecifier type = new ImageTypeSpecifier(new BufferedImage(1, 1, BufferedImage.TYPE_BYTE_INDEXED, color_model));
+		return Collections.singletonList(type).iterator();
+	}
+
+	@Override public IIOMetadata getStreamMetadata()
+	{
+		return null;
+	}
+
+	@Override public IIOMetadata getImageMetadata(int aImageIndex)
+	{
+		checkIndex(aImageIndex);
+		return null;
+	}
+
+	@Override public BufferedImage read(int aImageIndex, ImageReadParam aParam) throws IOException
+	{
+		checkIndex(aImageIndex);
+		readData();
+
+		int width = fHeader.size.width;
+		int height = fHeader.size.height;
+		BufferedImage image = getDestination(aParam, getImageTypes(0), width, height);
+		WritableRaster raster = image.getRaster();
+
+		Rectangle source = new Rectangle();
+		Rectangle dest = new Rectangle();
+		computeRegions(aParam, width, height, image, source, dest);
+		int x_step = (aParam != null) ? aParam.getSourceXSubsampling() : 1;
+		int y_step = (aParam != null) ? aParam.getSourceYSubsampling() : 1;
+
+		processImageStarted(aImageIndex);
+
+		SampleModel sample_model = raster.getSampleModel();
+		boolean plain_raster = raster.getDataBuffer() instanceof DataBufferByte && raster.getParent() == null
+				&& sample_model instanceof ComponentSampleModel && ((ComponentSampleModel)sample_model).getPixelStride() == 1
+				&& ((ComponentSampleModel)sample_model).getScanlineStride() == width && raster.getHeight() == height;
+		boolean success;
+		if (plain_raster && x_step == 1 && y_step == 1 && source.equals(new Rectangle(0, 0, width, height)) && dest.x == 0 && dest.y == 0) {
+			/* Complete image: Decode directly into the raster */
+			success = fDecoder.decodeAll(((DataBufferByte)raster.getDataBuffer()).getData());
+		} else {
+			/* Skip rows in front of the source region, stop behind it */
+			success = fDecoder.decode(source, x_step, y_step, raster, dest);
+		}
+		if (!success) throw new IIOException("Invalid PCX data.");
+
+		processImageComplete();
+		return image;
+	}
+}
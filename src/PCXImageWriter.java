@@ -0,0 +1,86 @@
+/*
+ * This file is part of TTDViewer.
+ * TTDViewer is free software; you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, version 2.
+ * TTDViewer is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details. You should have received a copy of the GNU General Public License along with TTDViewer. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.*;
+import java.util.*;
+import java.awt.image.*;
+import javax.imageio.*;
+import javax.imageio.metadata.*;
+import javax.imageio.spi.*;
+import javax.imageio.stream.*;
+
+/**
+ * ImageIO writer for 256 color indexed .pcx files.
+ * @see PCX#registerImageIO
+ */
+public class PCXImageWriter extends ImageWriter {
+	/** Service provider for {@link PCXImageWriter}. */
+	public static class Spi extends ImageWriterSpi {
+		public Spi()
+		{
+			super("TTDViewer", "1.0", new String[] {"pcx", "PCX"}, new String[] {"pcx"}, new String[] {"image/pcx", "image/x-pcx"},
+					"PCXImageWriter", new Class<?>[] {ImageOutputStream.class}, new String[] {"PCXImageReader$Spi"},
+					false, null, null, null, null, false, null, null, null, null);
+		}
+
+		/** Only 256 color indexed images with a single band can be encoded. */
+		@Override public boolean canEncodeImage(ImageTypeSpecifier aType)
+		{
+			ColorModel color_model = aType.getColorModel();
+			SampleModel sample_model = aType.getSampleModel();
+			return color_model instanceof IndexColorModel && ((IndexColorModel)color_model).getMapSize() <= 256
+					&& sample_model.getNumBands() == 1 && sample_model.getSampleSize(0) <= 8;
+		}
+
+		@Override public String getDescription(Locale aLocale)
+		{
+			return "256 color indexed PCX image writer";
+		}
+
+		@Override public ImageWriter createWriterInstance(Object aExtension)
+		{
+			return new PCXImageWriter(this);
+		}
+	}
+
+	public PCXImageWriter(ImageWriterSpi aOriginator)
+	{
+		super(aOriginator);
+	}
+
+	@Override public IIOMetadata getDefaultStreamMetadata(ImageWriteParam aParam)
+	{
+		return null;
+	}
+
+	@Override public IIOMetadata getDefaultImageMetadata(ImageTypeSpecifier aType, ImageWriteParam aParam)
+	{
+		return null;
+	}
+
+	@Override public IIOMetadata convertStreamMetadata(IIOMetadata aData, ImageWriteParam aParam)
+	{
+		return null;
+	}
+
+	@Override public IIOMetadata convertImageMetadata(IIOMetadata aData, ImageTypeSpecifier aType, ImageWriteParam aParam)
+	{
+		return null;
+	}
+
+	@Override public void write(IIOMetadata aStreamMetadata, IIOImage aImage, ImageWriteParam aParam) throws IOException
+	{
+		if (output == null) throw new IllegalStateException("No output set.");
+		if (!(aImage.getRenderedImage() instanceof BufferedImage)) throw new IIOException("Only BufferedImages can be saved as PCX.");
+
+		processImageStarted(0);
+		if (!PCX.saveTo((BufferedImage)aImage.getRenderedImage(), (ImageOutputStream)output)) {
+			throw new IIOException("Only 256 color indexed images can be saved as PCX.");
+		}
+		processImageComplete();
+	}
+}
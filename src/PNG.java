@@ -0,0 +1,512 @@
+/*
+ * This file is part of TTDViewer.
+ * TTDViewer is free software; you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, version 2.
+ * TTDViewer is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details. You should have received a copy of the GNU General Public License along with TTDViewer. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+import java.awt.*;
+import java.awt.image.*;
+
+/**
+ * Simple class to save 256 color indexed .png files.
+ * Unlike ImageIO it streams the rows of a {@link TTDImage} to the encoder, recoloring and zooming them on the fly,
+ * so only a band of the image and a single zoomed row are in memory at any time.
+ * The compression is configured by {@link Options}.
+ */
+public class PNG {
+	/** Row filters, see the PNG specification. */
+	public static final int FILTER_NONE = 0;
+	public static final int FILTER_SUB = 1;
+	public static final int FILTER_UP = 2;
+	public static final int FILTER_AVERAGE = 3;
+	public static final int FILTER_PAETH = 4;
+	/** Choose the filter per row, which minimizes the sum of the absolute filtered values. */
+	public static final int FILTER_ADAPTIVE = 5;
+
+	/** Names of the filters, indexed by filter. */
+	public static final String[] FILTER_NAMES = {"none", "sub", "up", "average", "paeth", "adaptive"};
+
+	/** Amount of uncompressed data per chunk, when deflating with multiple threads. */
+	public static final int CHUNK_SIZE = 1 << 20;
+
+	/** Options for encoding. */
+	public static class Options {
+		/** Deflate level 0 to 9, or {@link Deflater#DEFAULT_COMPRESSION}. */
+		public int level = Deflater.DEFAULT_COMPRESSION;
+
+		/** Row filter, one of the FILTER_ constants. */
+		public int filter = FILTER_NONE;
+
+		/**
+		 * Number of threads to deflate with.
+		 * With more than one thread, the image is split into chunks, which are compressed independently; like pigz does.
+		 */
+		public int threads = 1;
+
+		public Options()
+		{
+		}
+
+		public Options(int aLevel, int aFilter, int aThreads)
+		{
+			level = aLevel;
+			filter = aFilter;
+			threads = aThreads;
+		}
+	}
+
+	/**
+	 * Get a filter by name.
+	 * @return The FILTER_ constant.
+	 */
+	public static int parseFilter(String aName) throws IllegalArgumentException
+	{
+		for (int i = 0; i < FILTER_NAMES.length; i++) {
+			if (FILTER_NAMES[i].equalsIgnoreCase(aName)) return i;
+		}
+		throw new IllegalArgumentException("Unknown PNG filter: " + aName);
+	}
+
+	/** PNG file signature. */
+	private static final byte[] SIGNATURE = {(byte)0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+
+	/** Maximum amount of compressed data per IDAT chunk. */
+	public static final int IDAT_SIZE = 1 << 16;
+
+	/** Number of source rows fetched from the image at once; matches the tiles of {@link TiledTTDImage}. */
+	public static final int BAND_HEIGHT = TTDImage.TILE_SIZE;
+
+	/**
+	 * Write a chunk.
+	 * @param aStream Stream to write to.
+	 * @param aType Four letter chunk type.
+	 * @param aData Chunk data.
+	 * @param aLength Number of bytes of aData to write.
+	 */
+	protected static void writeChunk(DataOutputStream aStream, String aType, byte[] aData, int aLength) throws IOException
+	{
+		byte[] type = new byte[] {(byte)aType.charAt(0), (byte)aType.charAt(1), (byte)aType.charAt(2), (byte)aType.charAt(3)};
+		CRC32 crc = new CRC32();
+		crc.update(type);
+		crc.update(aData, 0, aLength);
+		aStream.writeInt(aLength);
+		aStream.write(type);
+		aStream.write(aData, 0, aLength);
+		aStream.writeInt((int)crc.getValue());
+	}
+
+	/** Splits the compressed image data into IDAT chunks. */
+	protected static class IDATOutputStream extends OutputStream {
+		private final DataOutputStream fStream;
+		private final byte[] fBuffer = new byte[IDAT_SIZE];
+		private int fLength = 0;
+
+		public IDATOutputStream(DataOutputStream aStream)
+		{
+			fStream = aStream;
+		}
+
+		@Override public void write(int b) throws IOException
+		{
+			if (fLength == fBuffer.length) flushChunk();
+			fBuffer[fLength++] = (byte)b;
+		}
+
+		@Override public void write(byte[] b, int off, int len) throws IOException
+		{
+			while (len > 0) {
+				if (fLength == fBuffer.length) flushChunk();
+				int n = Math.min(len, fBuffer.length - fLength);
+				System.arraycopy(b, off, fBuffer, fLength, n);
+				fLength += n;
+				off += n;
+				len -= n;
+			}
+		}
+
+		/** Write the buffered data as IDAT chunk. */
+		public void flushChunk() throws IOException
+		{
+			if (fLength == 0) return;
+			writeChunk(fStream, "IDAT", fBuffer, fLength);
+			fLength = 0;
+		}
+	}
+
+	/**
+	 * Filter a row.
+	 * @param aFilter Filter to apply, excluding {@link #FILTER_ADAPTIVE}.
+	 * @param aRow Pixels of the row.
+	 * @param aPrevious Pixels of the previous row; all zero for the first row.
+	 * @param aOut Output; the filter type followed by the filtered pixels.
+	 * @return Sum of the absolute filtered values, as signed bytes.
+	 */
+	protected static int filterRow(int aFilter, byte[] aRow, byte[] aPrevious, byte[] aOut)
+	{
+		int width = aRow.length;
+		aOut[0] = (byte)aFilter;
+		switch (aFilter) {
+			case FILTER_NONE:
+				System.arraycopy(aRow, 0, aOut, 1, width);
+				break;
+			case FILTER_SUB:
+				aOut[1] = aRow[0];
+				for (int x = 1; x < width; x++) aOut[x + 1] = (byte)(aRow[x] - aRow[x - 1]);
+				break;
+			case FILTER_UP:
+				for (int x = 0; x < width; x++) aOut[x + 1] = (byte)(aRow[x] - aPrevious[x]);
+				break;
+			case FILTER_AVERAGE:
+				aOut[1] = (byte)(aRow[0] - ((aPrevious[0] & 0xFF) >> 1));
+				for (int x = 1; x < width; x++) aOut[x + 1] = (byte)(aRow[x] - (((aRow[x - 1] & 0xFF) + (aPrevious[x] & 0xFF)) >> 1));
+				break;
+			case FILTER_PAETH:
+				aOut[1] = (byte)(aRow[0] - aPrevious[0]);
+				for (int x = 1; x < width; x++) {
+					int a = aRow[x - 1] & 0xFF;
+					int b = aPrevious[x] & 0xFF;
+					int c = aPrevious[x - 1] & 0xFF;
+					int pa = Math.abs(b - c);
+					int pb = Math.abs(a - c);
+					int pc = Math.abs(a + b - 2 * c);
+					int predictor = (pa <= pb && pa <= pc) ? a : (pb <= pc) ? b : c;
+					aOut[x + 1] = (byte)(aRow[x] - predictor);
+				}
+				break;
+			default:
+				throw new IllegalArgumentException("Invalid PNG filter: " + aFilter);
+		}
+
+		int sum = 0;
+		for (int x = 1; x <= width; x++) sum += Math.abs((int)aOut[x]);
+		return sum;
+	}
+
+	/** Produces the filtered, recolored and zoomed rows of a range of the image. */
+	protected static class RowEncoder {
+		private final TTDImage fImage;
+		private final IndexColorModel fColorModel;
+		private final byte[] fTable;
+		private final int fZoom;
+		private final int fFilter;
+		private final int fWidth;
+
+		private final byte[] fSource;
+		private byte[] fPrevious;
+		private byte[] fCurrent;
+		private final byte[] fFiltered;
+		private final byte[] fCandidate;
+
+		public RowEncoder(TTDImage aImage, IndexColorModel aColorModel, Recoloring aRecoloring, int aZoom, int aFilter)
+		{
+			fImage = aImage;
+			fColorModel = aColorModel;
+			fTable = (aRecoloring != null ? aRecoloring : new Recoloring()).getLookupTable();
+			fZoom = aZoom;
+			fFilter = aFilter;
+			fWidth = aImage.getSize().width;
+			fSource = new byte[fWidth];
+			fPrevious = new byte[fWidth * aZoom];
+			fCurrent = new byte[fWidth * aZoom];
+			fFiltered = new byte[1 + fWidth * aZoom];
+			fCandidate = (aFilter == FILTER_ADAPTIVE) ? new byte[1 + fWidth * aZoom] : null;
+		}
+
+		/** Recolor and zoom the source row into {@link #fCurrent}. */
+		private void zoomRow()
+		{
+			int out = 0;
+			for (int x = 0; x < fWidth; x++) {
+				byte color = fTable[fSource[x] & 0xFF];
+				for (int i = 0; i < fZoom; i++) fCurrent[out++] = color;
+			}
+		}
+
+		/**
+		 * Filter {@link #fCurrent} into {@link #fFiltered}.
+		 * @param aRepeated Whether the row is a repetition due to zooming, i.e. the previous row is the same.
+		 */
+		private void filterCurrent(boolean aRepeated)
+		{
+			byte[] previous = aRepeated ? fCurrent : fPrevious;
+			if (fFilter != FILTER_ADAPTIVE) {
+				filterRow(fFilter, fCurrent, previous, fFiltered);
+			} else if (aRepeated) {
+				/* Up filter yields zeros, which cannot be beaten */
+				filterRow(FILTER_UP, fCurrent, previous, fFiltered);
+			} else {
+				int best = filterRow(FILTER_NONE, fCurrent, previous, fFiltered);
+				for (int filter = FILTER_SUB; filter <= FILTER_PAETH; filter++) {
+					int sum = filterRow(filter, fCurrent, previous, fCandidate);
+					if (sum < best) {
+						best = sum;
+						System.arraycopy(fCandidate, 0, fFiltered, 0, fFiltered.length);
+					}
+				}
+			}
+		}
+
+		/**
+		 * Write the output rows of a range of source rows.
+		 * @param aFirst First source row.
+		 * @param aEnd Source row behind the range.
+		 * @param aStream Stream to write the filtered rows to.
+		 */
+		public void encode(int aFirst, int aEnd, OutputStream aStream) throws IOException
+		{
+			if (aFirst > 0 && fFilter != FILTER_NONE && fFilter != FILTER_SUB) {
+				/* The filters refer to the last row before the range */
+				Raster previous = fImage.getImage(fColorModel, new Rectangle(0, aFirst - 1, fWidth, 1)).getRaster();
+				previous.getDataElements(previous.getMinX(), previous.getMinY(), fWidth, 1, fSource);
+				zoomRow();
+				byte[] swap = fPrevious; fPrevious = fCurrent; fCurrent = swap;
+			} else {
+				Arrays.fill(fPrevious, (byte)0);
+			}
+
+			for (int band_y = aFirst; band_y < aEnd; band_y += BAND_HEIGHT) {
+				int band_height = Math.min(BAND_HEIGHT, aEnd - band_y);
+				Raster band = fImage.getImage(fColorModel, new Rectangle(0, band_y, fWidth, band_height)).getRaster();
+				for (int y = 0; y < band_height; y++) {
+					band.getDataElements(band.getMinX(), band.getMinY() + y, fWidth, 1, fSource);
+					zoomRow();
+					for (int i = 0; i < fZoom; i++) {
+						filterCurrent(i > 0);
+						aStream.write(fFiltered);
+					}
+					byte[] swap = fPrevious; fPrevious = fCurrent; fCurrent = swap;
+				}
+			}
+		}
+	}
+
+	/** Raw deflate data of a chunk of rows, with the checksum of the uncompressed data. */
+	protected static class Chunk {
+		public byte[] data;
+		public long adler;
+		public long length;
+	}
+
+	/**
+	 * Deflate a range of source rows into a chunk, which can be concatenated with the chunks of other ranges.
+	 * @param aLast Whether this is the last chunk of the image, which ends the deflate stream.
+	 */
+	protected static Chunk deflateChunk(RowEncoder aEncoder, int aLevel, int aFirst, int aEnd, boolean aLast) throws IOException
+	{
+		ByteArrayOutputStream data = new ByteArrayOutputStream();
+		Deflater deflater = new Deflater(aLevel, true);
+		try {
+			DeflaterOutputStream compressed = new DeflaterOutputStream(data, deflater, IDAT_SIZE, true);
+			CheckedOutputStream checked = new CheckedOutputStream(compressed, new Adler32());
+			CountingStream counted = new CountingStream(checked);
+			aEncoder.encode(aFirst, aEnd, counted);
+			if (aLast) {
+				compressed.finish();
+			} else {
+				/* Sync flush ends on a byte boundary, so the next chunk can be appended */
+				compressed.flush();
+			}
+			Chunk chunk = new Chunk();
+			chunk.data = data.toByteArray();
+			chunk.adler = checked.getChecksum().getValue();
+			chunk.length = counted.count;
+			return chunk;
+		} finally {
+			deflater.end();
+		}
+	}
+
+	/** Counts the bytes written through it. */
+	private static class CountingStream extends FilterOutputStream {
+		public long count = 0;
+
+		public CountingStream(OutputStream aStream)
+		{
+			super(aStream);
+		}
+
+		@Override public void write(int b) throws IOException
+		{
+			out.write(b);
+			count++;
+		}
+
+		@Override public void write(byte[] b, int off, int len) throws IOException
+		{
+			out.write(b, off, len);
+			count += len;
+		}
+	}
+
+	/**
+	 * Combine the Adler-32 checksums of two consecutive blocks of data, like adler32_combine of zlib.
+	 * @param aAdler1 Checksum of the first block.
+	 * @param aAdler2 Checksum of the second block.
+	 * @param aLength2 Length of the second block.
+	 */
+	protected static long combineAdler32(long aAdler1, long aAdler2, long aLength2)
+	{
+		final long base = 65521;
+		long rem = aLength2 % base;
+		long sum1 = aAdler1 & 0xFFFF;
+		long sum2 = (rem * sum1) % base;
+		sum1 += (aAdler2 & 0xFFFF) + base - 1;
+		sum2 += ((aAdler1 >> 16) & 0xFFFF) + ((aAdler2 >> 16) & 0xFFFF) + base - rem;
+		if (sum1 >= base) sum1 -= base;
+		if (sum1 >= base) sum1 -= base;
+		if (sum2 >= (base << 1)) sum2 -= (base << 1);
+		if (sum2 >= base) sum2 -= base;
+		return sum1 | (sum2 << 16);
+	}
+
+	/**
+	 * Deflate the image data with multiple threads.
+	 * The chunks are raw deflate streams, which are wrapped into a single zlib stream with a combined checksum.
+	 * At most two chunks per thread are in memory.
+	 */
+	protected static void deflateParallel(final TTDImage aImage, final IndexColorModel aColorModel, final Recoloring aRecoloring, final int aZoom, final Options aOptions, OutputStream aStream) throws IOException
+	{
+		int height = aImage.getSize().height;
+		long row_size = (1 + (long)aImage.getSize().width * aZoom) * aZoom;
+		int chunk_rows = (int)Math.max(1, Math.min(height, CHUNK_SIZE / row_size));
+
+		/* zlib header, see RFC 1950 */
+		int level = (aOptions.level < 0) ? 6 : aOptions.level;
+		int cmf = 0x78;
+		int flg = ((level <= 1) ? 0 : (level <= 5) ? 1 : (level == 6) ? 2 : 3) << 6;
+		flg += 31 - ((cmf << 8) + flg) % 31;
+		aStream.write(cmf);
+		aStream.write(flg);
+
+		ExecutorService pool = Executors.newFixedThreadPool(aOptions.threads);
+		final ThreadLocal<RowEncoder> encoders = new ThreadLocal<RowEncoder>() {
+			@Override protected RowEncoder initialValue()
+			{
+				return new RowEncoder(aImage, aColorModel, aRecoloring, aZoom, aOptions.filter);
+			}
+		};
+		try {
+			ArrayDeque<Future<Chunk>> pending = new ArrayDeque<Future<Chunk>>();
+			long adler = 1;
+			int next = 0;
+			while (next < height || !pending.isEmpty()) {
+				while (next < height && pending.size() < 2 * aOptions.threads) {
+					final int first = next;
+					final int end = Math.min(height, next + chunk_rows);
+					pending.add(pool.submit(new Callable<Chunk>() {
+						@Override public Chunk call() throws IOException
+						{
+							return deflateChunk(encoders.get(), aOptions.level, first, end, end == aImage.getSize().height);
+						}
+					}));
+					next = end;
+				}
+				Chunk chunk;
+				try {
+					chunk = pending.poll().get();
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException();
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof IOException) throw (IOException)e.getCause();
+					throw new IOException(e.getCause());
+				}
+				aStream.write(chunk.data);
+				adler = combineAdler32(adler, chunk.adler, chunk.length);
+			}
+
+			aStream.write((int)(adler >> 24));
+			aStream.write((int)(adler >> 16));
+			aStream.write((int)(adler >> 8));
+			aStream.write((int)adler);
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Save an image as .png to a stream, optionally recolored and zoomed.
+	 * The pixels are the same as {@link TTDImage#createOutputImage} written by ImageIO,
+	 * but memory usage only depends on the width of the image and the number of threads.
+	 * @param aImage Image to save.
+	 * @param aColorModel Color model of the result; at most 256 colors.
+	 * @param aRecoloring Recoloring to apply to the pixels; null for none.
+	 * @param aZoom Zoom level; 1 for none.
+	 * @param aOptions Compression options.
+	 * @param aStream Stream to write to. It is flushed, but not closed.
+	 */
+	public static void saveTo(TTDImage aImage, IndexColorModel aColorModel, Recoloring aRecoloring, int aZoom, Options aOptions, OutputStream aStream) throws IOException
+	{
+		Dimension size = aImage.getSize();
+		long out_width = (long)size.width * aZoom;
+		long out_height = (long)size.height * aZoom;
+		if (out_width > Integer.MAX_VALUE - 1 || out_height > Integer.MAX_VALUE) throw new IOException("Image too large for PNG.");
+		if (aColorModel.getMapSize() > 256) throw new IOException("Only 256 color indexed images can be saved as PNG.");
+
+		DataOutputStream stream = new DataOutputStream(aStream);
+		stream.write(SIGNATURE);
+
+		ByteArrayOutputStream header = new ByteArrayOutputStream();
+		DataOutputStream header_data = new DataOutputStream(header);
+		header_data.writeInt((int)out_width);
+		header_data.writeInt((int)out_height);
+		header_data.writeByte(8); // bit depth
+		header_data.writeByte(3); // indexed color
+		header_data.writeByte(0); // deflate
+		header_data.writeByte(0); // adaptive filtering
+		header_data.writeByte(0); // no interlace
+		writeChunk(stream, "IHDR", header.toByteArray(), header.size());
+
+		int colors = aColorModel.getMapSize();
+		byte[] palette = new byte[colors * 3];
+		byte[] alpha = new byte[colors];
+		int alpha_length = 0;
+		for (int i = 0; i < colors; i++) {
+			int c = aColorModel.getRGB(i);
+			palette[i * 3]     = (byte)(c >> 16);
+			palette[i * 3 + 1] = (byte)(c >> 8);
+			palette[i * 3 + 2] = (byte)c;
+			alpha[i] = (byte)(c >>> 24);
+			if ((c >>> 24) != 0xFF) alpha_length = i + 1;
+		}
+		writeChunk(stream, "PLTE", palette, palette.length);
+		if (alpha_length > 0) writeChunk(stream, "tRNS", alpha, alpha_length);
+
+		IDATOutputStream idat = new IDATOutputStream(stream);
+		if (aOptions.threads > 1 && out_width * out_height > CHUNK_SIZE) {
+			deflateParallel(aImage, aColorModel, aRecoloring, aZoom, aOptions, idat);
+		} else {
+			Deflater deflater = new Deflater(aOptions.level);
+			try {
+				DeflaterOutputStream compressed = new DeflaterOutputStream(idat, deflater, IDAT_SIZE);
+				new RowEncoder(aImage, aColorModel, aRecoloring, aZoom, aOptions.filter).encode(0, size.height, compressed);
+				compressed.finish();
+			} finally {
+				deflater.end();
+			}
+		}
+		idat.flushChunk();
+
+		writeChunk(stream, "IEND", new byte[0], 0);
+		stream.flush();
+	}
+
+	/**
+	 * Save an image as .png to a File, optionally recolored and zoomed.
+	 * An existing file is overwritten.
+	 * @see #saveTo(TTDImage, IndexColorModel, Recoloring, int, Options, OutputStream)
+	 */
+	public static void saveTo(TTDImage aImage, IndexColorModel aColorModel, Recoloring aRecoloring, int aZoom, Options aOptions, File aFile) throws IOException
+	{
+		OutputStream stream = new BufferedOutputStream(new FileOutputStream(aFile), IDAT_SIZE);
+		try {
+			saveTo(aImage, aColorModel, aRecoloring, aZoom, aOptions, stream);
+		} finally {
+			stream.close();
+		}
+	}
+}
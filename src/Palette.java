@@ -5,6 +5,7 @@
  * See the GNU General Public License for more details. You should have received a copy of the GNU General Public License along with TTDViewer. If not, see <http://www.gnu.org/licenses/>.
  */
 
+import java.util.*;
 import java.awt.*;
 import java.awt.image.*;
 import javax.swing.event.*;
@@ -17,6 +18,45 @@ public class Palette extends DefaultChangeEventTrigger {
 	/** Current RGBA palette. */
 	protected int[] fCurrentPalette = new int[256];
 
+	/**
+	 * Incremented on every modification of {@link #fCurrentPalette}.
+	 * Subclasses must call {@link #paletteChanged} after modifying it.
+	 */
+	private int fPaletteVersion = 0;
+
+	/** Cached color model for a certain recoloring. */
+	private static class CachedColorModel {
+		/** {@link #fPaletteVersion} the color model was built for. */
+		public final int palette_version;
+
+		/** {@link Recoloring#getVersion} the color model was built for. */
+		public final int recoloring_version;
+
+		public final IndexColorModel color_model;
+
+		public CachedColorModel(int aPaletteVersion, int aRecoloringVersion, IndexColorModel aColorModel)
+		{
+			palette_version = aPaletteVersion;
+			recoloring_version = aRecoloringVersion;
+			color_model = aColorModel;
+		}
+	}
+
+	/**
+	 * Color models built by {@link #getColorModel(Recoloring, boolean)}.
+	 * Keys are compared by identity.
+	 */
+	private final WeakHashMap<Recoloring, CachedColorModel> fColorModelCache = new WeakHashMap<Recoloring, CachedColorModel>();
+
+	/** Same as {@link #fColorModelCache}, but for transparent as blue. */
+	private final WeakHashMap<Recoloring, CachedColorModel> fBlueColorModelCache = new WeakHashMap<Recoloring, CachedColorModel>();
+
+	/** Number of {@link #getColorModel(Recoloring, boolean)} calls served from the cache. */
+	private long fColorModelCacheHits = 0;
+
+	/** Number of {@link #getColorModel(Recoloring, boolean)} calls which built a new color model. */
+	private long fColorModelCacheMisses = 0;
+
 	/**
 	 * Selected global recoloring.
 	 * Note: It is final, so everyone can refer to it. But the actualy remapping changes nevertheless.
@@ -39,8 +79,35 @@ public class Palette extends DefaultChangeEventTrigger {
 		fireChangeEvent();
 	}
 
+	/** Must be called after modifying {@link #fCurrentPalette}, to invalidate cached color models. */
+	protected void paletteChanged()
+	{
+		fPaletteVersion++;
+	}
+
+	/**
+	 * Get a IndexColorModel with the current palette and a certain recoloring applied.
+	 * Color models are cached until either the palette or the recoloring is modified.
+	 * This may be called from multiple threads.
+	 */
+	public synchronized IndexColorModel getColorModel(Recoloring aRecoloring, boolean aTransparentAsBlue)
+	{
+		WeakHashMap<Recoloring, CachedColorModel> cache = aTransparentAsBlue ? fBlueColorModelCache : fColorModelCache;
+		int recoloring_version = (aRecoloring != null) ? aRecoloring.getVersion() : 0;
+		CachedColorModel cached = cache.get(aRecoloring);
+		if (cached != null && cached.palette_version == fPaletteVersion && cached.recoloring_version == recoloring_version) {
+			fColorModelCacheHits++;
+			return cached.color_model;
+		}
+		fColorModelCacheMisses++;
+
+		IndexColorModel color_model = buildColorModel(aRecoloring, aTransparentAsBlue);
+		cache.put(aRecoloring, new CachedColorModel(fPaletteVersion, recoloring_version, color_model));
+		return color_model;
+	}
+
 	/** Build a IndexColorModel with the current palette and a certain recoloring applied. */
-	public IndexColorModel getColorModel(Recoloring aRecoloring, boolean aTransparentAsBlue)
+	protected IndexColorModel buildColorModel(Recoloring aRecoloring, boolean aTransparentAsBlue)
 	{
 		int[] raw_palette;
 		if (aTransparentAsBlue) {
@@ -58,6 +125,18 @@ public class Palette extends DefaultChangeEventTrigger {
 		return new IndexColorModel(8, 256, palette, 0, !aTransparentAsBlue, -1, DataBuffer.TYPE_BYTE);
 	}
 
+	/** Number of {@link #getColorModel(Recoloring, boolean)} calls served from the cache. */
+	public long getColorModelCacheHits()
+	{
+		return fColorModelCacheHits;
+	}
+
+	/** Number of {@link #getColorModel(Recoloring, boolean)} calls which built a new color model. */
+	public long getColorModelCacheMisses()
+	{
+		return fColorModelCacheMisses;
+	}
+
 	/** Build a IndexColorModel with the current palette. */
 	public IndexColorModel getColorModel(boolean aTransparentAsBlue)
 	{
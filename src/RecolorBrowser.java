@@ -13,15 +13,10 @@ import java.text.*;
 import javax.swing.*;
 import javax.swing.tree.*;
 import javax.swing.event.*;
-import javax.xml.*;
-import javax.xml.parsers.*;
-import javax.xml.validation.*;
-import org.xml.sax.*;
-import org.w3c.dom.*;
 
 /**
  * Ah, well, the thingie on the right.
- * It displays the palette animations from TTDPalette and the recolorings from recolor.xml (validated using recolor.xsd),
+ * It displays the palette animations from TTDPalette and the recolorings from recolor.xml (see {@link RecolorDefinitions}),
  * and allows you to select stuff from it.
  *
  * TODO the mouse handling in this is really a mess.
@@ -146,28 +141,18 @@ public class RecolorBrowser extends JTree {
 		}
 
 		/**
-		 * Create new treeitem with name and description from an XML element.
+		 * Create new treeitem with name and description from a recolor definition.
 		 * @param aParent Parent item in the tree
-		 * @param aElement Element to take name and description from
+		 * @param aDefinition Definition to take name, description and climates from
 		 */
-		protected TreeItem(TreeItem aParent, Element aElement)
+		protected TreeItem(TreeItem aParent, RecolorDefinitions.Item aDefinition)
 		{
 			parent = aParent;
-			name = aElement.getAttribute("name");
-			description = aElement.getAttribute("desc");
-
+			name = aDefinition.name;
+			description = aDefinition.description;
 			for (int i = 0; i < climates.length; i++) {
-				climates[i] = false;
-			}
-			String climate_list = aElement.getAttribute("climates");
-			String split_climates[] = climate_list.split(" ");
-			for (int i = 0; i < split_climates.length; i++) {
-				if (split_climates[i].equals("temperate")) climates[TTDPalette.TEMPERATE] = true;
-				if (split_climates[i].equals("arctic"))    climates[TTDPalette.ARCTIC]    = true;
-				if (split_climates[i].equals("tropic"))    climates[TTDPalette.TROPIC]    = true;
-				if (split_climates[i].equals("toyland"))   climates[TTDPalette.TOYLAND]   = true;
+				climates[i] = aDefinition.climates[i];
 			}
-
 			setupDisplay();
 		}
 
@@ -254,97 +239,24 @@ public class RecolorBrowser extends JTree {
 		}
 
 		/**
-		 * Parse a space-separated list of numbers.
-		 * @param aList list of numbers
-		 * @param aRadix Base of the numbers (decimal, hexadecimal, ...)
-		 * @return array containing the numbers
-		 */
-		private int[] readNumberList(String aList, int aRadix)
-		{
-			String[] split_indices = aList.split(" ");
-			int[] indices = new int[split_indices.length];
-			for (int i = 0; i < split_indices.length; i++) {
-				indices[i] = Integer.parseInt(split_indices[i], aRadix);
-			}
-			return indices;
-		}
-
-		/**
-		 * Construct a new RecolorItem by reading its content from an Element.
+		 * Construct a new RecolorItem from its definition.
 		 * @param aParent Parent item in the tree
 		 * @param aPalette Palette to use for the PalettePicker
-		 * @param aElement Element to use data from
+		 * @param aDefinition Definition of the recoloring
 		 */
-		public RecolorItem(TreeItem aParent, Palette aPalette, Element aElement)
+		public RecolorItem(TreeItem aParent, Palette aPalette, RecolorDefinitions.Item aDefinition)
 		{
-			super(aParent, aElement);
+			super(aParent, aDefinition);
 
-			/* Read 'sprite' */
-			String sprite = aElement.getAttribute("sprite");
-			if (sprite.length() > 0) {
-				fSprite = Integer.parseInt(sprite);
+			fSprite = aDefinition.sprite;
+			if (fSprite >= 0) {
 				fDisplay.setToolTipText(description + (description.length() == 0 ? "(" : " (")
 					+ Integer.toString(fSprite) + "/0x" + Integer.toHexString(fSprite) + ")");
 			}
 
-			/* Read 'indices' */
-			int[] indices;
-			String all_indices = aElement.getAttribute("indices");
-			if (all_indices.equals("none")) {
-				indices = new int[0];
-			} else if (all_indices.equals("all")) {
-				indices = new int[256];
-				for (int i = 0; i < 256; i++) {
-					indices[i] = i;
-				}
-			} else {
-				indices = readNumberList(all_indices, 16);
-			}
-
-			/* Read 'separateable' */
-			String separateable = aElement.getAttribute("separateable");
-			if (separateable.equals("none")) {
-				fSeparate = new int[0];
-			} else if (separateable.equals("all")) {
-				fSeparate = indices;
-			} else {
-				fSeparate = readNumberList(separateable, 16);
-			}
-
-			/* Read content */
-			String content = new String();
-			for (Node node = aElement.getFirstChild(); node != null; node = node.getNextSibling()) {
-				if (node.getNodeType() == Node.TEXT_NODE) {
-					content += node.getNodeValue();
-				}
-			}
-
-			String[] split_content;
-			if (content.length() > 0) {
-				split_content = content.split(" ");
-			} else {
-				split_content = new String[0];
-			}
-			if (split_content.length != indices.length) {
-				System.out.println("<recolor> " + name + ": Length of 'indices' (" + String.valueOf(indices.length)
-						+ ") and 'content' (" + String.valueOf(split_content.length) + ") do not match.");
-				System.exit(1);
-			}
-
-			/* Set up recoloring */
-			int[] remap = new int[256];
-			for (int i = 0; i < 256; i++) {
-				remap[i] = i;
-			}
-
-			for (int i = 0; i < indices.length; i++)
-			{
-				if (!split_content[i].equals("__")) {
-					remap[indices[i]] = Integer.parseInt(split_content[i], 16);
-				}
-			}
-
-			fRecoloring = new Recoloring(remap);
+			/* Shared with the other windows */
+			fSeparate = aDefinition.separate;
+			fRecoloring = aDefinition.recoloring;
 
 			/* Set up palette picker, if colors get separated */
 			if (fSeparate.length > 0) {
@@ -431,54 +343,40 @@ public class RecolorBrowser extends JTree {
 		}
 
 		/**
-		 * Recursively construct a matching item to an Element and append it as child.
+		 * Recursively construct a matching item to a recolor definition and append it as child.
 		 * @param aPalette Palette to use for potential PalettePickers.
-		 * @param aElement Element to read data from
+		 * @param aDefinition Definition to read data from
 		 */
-		public void append(Palette aPalette, Element aElement)
-		{
-			String tag = aElement.getTagName();
-			if (tag.equals("recolor")) {
-				append(new RecolorItem(this, aPalette, aElement));
-			} else if (tag.equals("choice")) {
-				append(new ChoiceItem(this, aPalette, aElement));
-			} else if (tag.equals("sequence")) {
-				append(new SequenceItem(this, aPalette, aElement));
+		public void append(Palette aPalette, RecolorDefinitions.Item aDefinition)
+		{
+			switch (aDefinition.type) {
+				case RecolorDefinitions.RECOLOR:  append(new RecolorItem(this, aPalette, aDefinition)); break;
+				case RecolorDefinitions.CHOICE:   append(new ChoiceItem(this, aPalette, aDefinition)); break;
+				case RecolorDefinitions.SEQUENCE: append(new SequenceItem(this, aPalette, aDefinition)); break;
 			}
 		}
 
 		/**
-		 * Construct matching items for all child Elements and append them as chilren.
+		 * Construct matching items for a list of recolor definitions and append them as chilren.
 		 * @param aPalette Palette to use for potential PalettePickers.
-		 * @param aElement Element to read child elements from
+		 * @param aDefinitions Definitions to read data from
 		 */
-		public void appendChildren(Palette aPalette, Node aElement)
+		public void appendChildren(Palette aPalette, RecolorDefinitions.Item[] aDefinitions)
 		{
-			for (Node node = aElement.getFirstChild(); node != null; node = node.getNextSibling()) {
-				if (node.getNodeType() == Node.ELEMENT_NODE) {
-					append(aPalette, (Element)node);
-				}
+			for (int i = 0; i < aDefinitions.length; i++) {
+				append(aPalette, aDefinitions[i]);
 			}
 		}
 
 		/**
-		 * Parse XML file, and append root elements as children.
-		 * The XML file is validated using 'recolor.xsd'.
+		 * Load recolor definitions, and append root items as children.
 		 * @param aPalette Palette to use for potential PalettePickers.
-		 * @param aFileName File to read
+		 * @param aFileName File to read, see {@link RecolorDefinitions#get}
 		 */
 		public void appendFile(Palette aPalette, String aFileName)
 		{
 			try {
-				SchemaFactory schema_factory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
-				DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-				factory.setIgnoringComments(true);
-				factory.setNamespaceAware(false);
-				factory.setCoalescing(true);
-				factory.setSchema(schema_factory.newSchema(getClass().getResource("recolor.xsd")));
-				DocumentBuilder builder = factory.newDocumentBuilder();
-				Document document = builder.parse(getClass().getResource(aFileName).openStream());
-				appendChildren(aPalette, document);
+				appendChildren(aPalette, RecolorDefinitions.get(aFileName));
 			} catch (Exception e) {
 				System.out.println(aFileName + " is invalid: " + e.toString());
 				System.exit(1);
@@ -498,11 +396,11 @@ public class RecolorBrowser extends JTree {
 		/**
 		 * Construct a simple branch item
 		 * @param aParent Parent item in the tree
-		 * @param aElement Element to take name and description from
+		 * @param aDefinition Definition to take name and description from
 		 */
-		public BranchItem(TreeItem aParent, Element aElement)
+		public BranchItem(TreeItem aParent, RecolorDefinitions.Item aDefinition)
 		{
-			super(aParent, aElement);
+			super(aParent, aDefinition);
 		}
 
 		@Override public Enumeration children()
@@ -591,16 +489,16 @@ public class RecolorBrowser extends JTree {
 		}
 
 		/**
-		 * Construct branch item using a radiobuttons for the child items of an Element.
-		 * The child items are recursively constructed from the child elements.
+		 * Construct branch item using a radiobuttons for the child items of a recolor definition.
+		 * The child items are recursively constructed from the child definitions.
 		 * @param aParent Parent item in the tree
 		 * @param aPalette Palette to use for potential PalettePickers.
-		 * @param aElement Element to take name and description from
+		 * @param aDefinition Definition to take name, description and children from
 		 */
-		public ChoiceItem(TreeItem aParent, Palette aPalette, Element aElement)
+		public ChoiceItem(TreeItem aParent, Palette aPalette, RecolorDefinitions.Item aDefinition)
 		{
-			super(aParent, aElement);
-			appendChildren(aPalette, aElement);
+			super(aParent, aDefinition);
+			appendChildren(aPalette, aDefinition.children);
 		}
 	}
 
@@ -617,16 +515,16 @@ public class RecolorBrowser extends JTree {
 		}
 
 		/**
-		 * Construct branch item using a the child items of an Element.
-		 * The child items are recursively constructed from the child elements.
+		 * Construct branch item using a the child items of a recolor definition.
+		 * The child items are recursively constructed from the child definitions.
 		 * @param aParent Parent item in the tree
 		 * @param aPalette Palette to use for potential PalettePickers.
-		 * @param aElement Element to take name and description from
+		 * @param aDefinition Definition to take name, description and children from
 		 */
-		public SequenceItem(TreeItem aParent, Palette aPalette, Element aElement)
+		public SequenceItem(TreeItem aParent, Palette aPalette, RecolorDefinitions.Item aDefinition)
 		{
-			super(aParent, aElement);
-			appendChildren(aPalette, aElement);
+			super(aParent, aDefinition);
+			appendChildren(aPalette, aDefinition.children);
 		}
 
 		/**
@@ -766,6 +664,59 @@ public class RecolorBrowser extends JTree {
 		ToolTipManager.sharedInstance().registerComponent(this);
 	}
 
+	/**
+	 * Recursively collect the definitions matching a name, see {@link #findRecoloring}.
+	 * @param aItems Definitions to search.
+	 * @param aParentPath Names of the parents of aItems, separated by '/'.
+	 * @param aName Name to search for, in lower case.
+	 * @param aSprite Sprite number to search for; -1 if none.
+	 * @param aResult Matching definitions.
+	 * @param aPaths Names of the matching definitions and their parents, for error messages.
+	 */
+	private static void findDefinitions(RecolorDefinitions.Item[] aItems, String aParentPath, String aName, int aSprite, ArrayList<RecolorDefinitions.Item> aResult, ArrayList<String> aPaths)
+	{
+		for (int i = 0; i < aItems.length; i++) {
+			RecolorDefinitions.Item item = aItems[i];
+			String path = (aParentPath.length() > 0) ? aParentPath + "/" + item.name : item.name;
+			String lower_path = path.toLowerCase();
+			if (lower_path.equals(aName) || lower_path.endsWith("/" + aName) || (aSprite >= 0 && item.sprite == aSprite)) {
+				aResult.add(item);
+				aPaths.add(path);
+			}
+			findDefinitions(item.children, path, aName, aSprite, aResult, aPaths);
+		}
+	}
+
+	/**
+	 * Find a recoloring from 'recolor.xml' by name, without creating a browser.
+	 * @param aName Name of the item, optionally preceded by the names of its parents separated by '/' (e.g. "First Color/red"),
+	 *              or the sprite number of the recolor sprite. Case is ignored.
+	 * @return the recoloring of the item.
+	 * @throws Exception if no item or more than one item matches.
+	 */
+	public static Recoloring findRecoloring(String aName) throws Exception
+	{
+		int sprite = -1;
+		try {
+			sprite = Integer.parseInt(aName);
+		} catch (NumberFormatException e) {}
+
+		ArrayList<RecolorDefinitions.Item> items = new ArrayList<RecolorDefinitions.Item>();
+		ArrayList<String> paths = new ArrayList<String>();
+		findDefinitions(RecolorDefinitions.get("recolor.xml"), "", aName.toLowerCase(), sprite, items, paths);
+		if (items.isEmpty()) throw new Exception("Recoloring '" + aName + "' not found.");
+		if (items.size() > 1) {
+			String message = "Recoloring '" + aName + "' is ambiguous:";
+			for (int i = 0; i < paths.size(); i++) {
+				message += "\n  " + paths.get(i);
+			}
+			throw new Exception(message);
+		}
+
+		Recoloring recoloring = items.get(0).getDefaultRecoloring();
+		return recoloring != null ? recoloring : new Recoloring();
+	}
+
 	/**
 	 * Creates the main recolor browser containing all palette animations and the recolorings from 'recolor.xml'.
 	 * @param aPalette Palette for the PalettePickers and PaletteAnimations.
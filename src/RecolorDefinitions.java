@@ -0,0 +1,443 @@
+/*
+ * This file is part of TTDViewer.
+ * TTDViewer is free software; you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, version 2.
+ * TTDViewer is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details. You should have received a copy of the GNU General Public License along with TTDViewer. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.zip.*;
+import javax.xml.*;
+import javax.xml.parsers.*;
+import javax.xml.validation.*;
+import org.w3c.dom.*;
+
+/**
+ * The items of 'recolor.xml', independent of their display in the {@link RecolorBrowser}.
+ *
+ * Validating and parsing the XML takes a while, so the Makefile compiles it into 'recolor.bin' using {@link #main}.
+ * The binary file contains the checksum of the XML file it was compiled from; if it is missing or does not match,
+ * the XML file is parsed instead.
+ *
+ * Each file is only loaded once per process by {@link #get}. The items are immutable and shared between all windows and threads;
+ * their arrays and recolorings must not be modified. The selection state is kept by each {@link RecolorBrowser}.
+ */
+public class RecolorDefinitions {
+	/** Item types, matching the XML elements. */
+	public static final int RECOLOR  = 0;
+	public static final int CHOICE   = 1;
+	public static final int SEQUENCE = 2;
+
+	/** Identification and version of the binary format. */
+	private static final int MAGIC = 0x54524342; // "TRCB"
+	private static final int VERSION = 1;
+
+	/** Items of the files loaded so far, by file name. */
+	private static final HashMap<String, Item[]> fLoaded = new HashMap<String, Item[]>();
+
+	/** A single item; either a recoloring or a branch. */
+	public static class Item {
+		/** One of {@link #RECOLOR}, {@link #CHOICE} and {@link #SEQUENCE}. */
+		public final int type;
+
+		/** Text to appear in the tree. */
+		public final String name;
+
+		/** Text to appear in some tooltip. */
+		public final String description;
+
+		/** Climates in which the item is available. */
+		public final boolean climates[] = new boolean[TTDPalette.NUM_CLIMATES];
+
+		/** Sprite number of the recolor sprite; -1 if none. Only for {@link #RECOLOR}. */
+		public final int sprite;
+
+		/** Color indexes to separate from the main palette. Only for {@link #RECOLOR}. */
+		public final int[] separate;
+
+		/** Complete remapping of all 256 color indexes. Only for {@link #RECOLOR}. */
+		public final int[] remap;
+
+		/** Recoloring built from {@link #remap}; null for branches. */
+		public final Recoloring recoloring;
+
+		/** Child items. Only for {@link #CHOICE} and {@link #SEQUENCE}. */
+		public final Item[] children;
+
+		/**
+		 * Create a recoloring item.
+		 * @param aName Text to appear in the tree.
+		 * @param aDescription Text to appear in some tooltip.
+		 * @param aClimates Climates in which the item is available.
+		 * @param aSprite Sprite number of the recolor sprite; -1 if none.
+		 * @param aSeparate Color indexes to separate from the main palette.
+		 * @param aRemap Complete remapping of all 256 color indexes.
+		 */
+		public Item(String aName, String aDescription, boolean[] aClimates, int aSprite, int[] aSeparate, int[] aRemap)
+		{
+			type = RECOLOR;
+			name = aName;
+			description = aDescription;
+			System.arraycopy(aClimates, 0, climates, 0, climates.length);
+			sprite = aSprite;
+			separate = aSeparate;
+			remap = aRemap;
+			recoloring = new Recoloring(aRemap);
+			children = new Item[0];
+		}
+
+		/**
+		 * Create a branch item.
+		 * @param aType {@link #CHOICE} or {@link #SEQUENCE}.
+		 * @param aName Text to appear in the tree.
+		 * @param aDescription Text to appear in some tooltip.
+		 * @param aClimates Climates in which the item is available.
+		 * @param aChildren Child items.
+		 */
+		public Item(int aType, String aName, String aDescription, boolean[] aClimates, Item[] aChildren)
+		{
+			type = aType;
+			name = aName;
+			description = aDescription;
+			System.arraycopy(aClimates, 0, climates, 0, climates.length);
+			sprite = -1;
+			separate = new int[0];
+			remap = null;
+			recoloring = null;
+			children = aChildren;
+		}
+
+		/**
+		 * Get the recoloring of the item, when nothing was selected by the user.
+		 * That is all children of a sequence and the first child of a choice, in all climates.
+		 * @return the recoloring; null if identity will do.
+		 */
+		public Recoloring getDefaultRecoloring()
+		{
+			if (type == RECOLOR) return recoloring;
+			if (type == CHOICE) return (children.length > 0) ? children[0].getDefaultRecoloring() : null;
+
+			Recoloring recolor = null;
+			for (int i = 0; i < children.length; i++) {
+				Recoloring sub_recolor = children[i].getDefaultRecoloring();
+				if (sub_recolor != null) {
+					recolor = (recolor == null) ? sub_recolor : new Recoloring(new Recoloring[] {recolor, sub_recolor});
+				}
+			}
+			return recolor;
+		}
+	}
+
+	/**
+	 * Parse a space-separated list of numbers.
+	 * @param aList list of numbers
+	 * @param aRadix Base of the numbers (decimal, hexadecimal, ...)
+	 * @return array containing the numbers
+	 */
+	private static int[] readNumberList(String aList, int aRadix)
+	{
+		String[] split_indices = aList.split(" ");
+		int[] indices = new int[split_indices.length];
+		for (int i = 0; i < split_indices.length; i++) {
+			indices[i] = Integer.parseInt(split_indices[i], aRadix);
+		}
+		return indices;
+	}
+
+	/**
+	 * Construct an item from an XML element.
+	 * @return the item; null if the element is unknown.
+	 */
+	protected static Item readElement(Element aElement) throws Exception
+	{
+		int type;
+		String tag = aElement.getTagName();
+		if (tag.equals("recolor")) {
+			type = RECOLOR;
+		} else if (tag.equals("choice")) {
+			type = CHOICE;
+		} else if (tag.equals("sequence")) {
+			type = SEQUENCE;
+		} else {
+			return null;
+		}
+		String name = aElement.getAttribute("name");
+		String description = aElement.getAttribute("desc");
+
+		boolean[] climates = new boolean[TTDPalette.NUM_CLIMATES];
+		String climate_list = aElement.getAttribute("climates");
+		String split_climates[] = climate_list.split(" ");
+		for (int i = 0; i < split_climates.length; i++) {
+			if (split_climates[i].equals("temperate")) climates[TTDPalette.TEMPERATE] = true;
+			if (split_climates[i].equals("arctic"))    climates[TTDPalette.ARCTIC]    = true;
+			if (split_climates[i].equals("tropic"))    climates[TTDPalette.TROPIC]    = true;
+			if (split_climates[i].equals("toyland"))   climates[TTDPalette.TOYLAND]   = true;
+		}
+
+		if (type != RECOLOR) return new Item(type, name, description, climates, readChildren(aElement));
+
+		/* Read 'sprite' */
+		int sprite = -1;
+		String sprite_text = aElement.getAttribute("sprite");
+		if (sprite_text.length() > 0) sprite = Integer.parseInt(sprite_text);
+
+		/* Read 'indices' */
+		int[] indices;
+		String all_indices = aElement.getAttribute("indices");
+		if (all_indices.equals("none")) {
+			indices = new int[0];
+		} else if (all_indices.equals("all")) {
+			indices = new int[256];
+			for (int i = 0; i < 256; i++) {
+				indices[i] = i;
+			}
+		} else {
+			indices = readNumberList(all_indices, 16);
+		}
+
+		/* Read 'separateable' */
+		int[] separate;
+		String separateable = aElement.getAttribute("separateable");
+		if (separateable.equals("none")) {
+			separate = new int[0];
+		} else if (separateable.equals("all")) {
+			separate = indices;
+		} else {
+			separate = readNumberList(separateable, 16);
+		}
+
+		/* Read content */
+		String content = new String();
+		for (Node node = aElement.getFirstChild(); node != null; node = node.getNextSibling()) {
+			if (node.getNodeType() == Node.TEXT_NODE) {
+				content += node.getNodeValue();
+			}
+		}
+
+		String[] split_content;
+		if (content.length() > 0) {
+			split_content = content.split(" ");
+		} else {
+			split_content = new String[0];
+		}
+		if (split_content.length != indices.length) {
+			throw new Exception("<recolor> " + name + ": Length of 'indices' (" + String.valueOf(indices.length)
+					+ ") and 'content' (" + String.valueOf(split_content.length) + ") do not match.");
+		}
+
+		/* Set up recoloring */
+		int[] remap = new int[256];
+		for (int i = 0; i < 256; i++) {
+			remap[i] = i;
+		}
+
+		for (int i = 0; i < indices.length; i++) {
+			if (!split_content[i].equals("__")) {
+				remap[indices[i]] = Integer.parseInt(split_content[i], 16);
+			}
+		}
+		return new Item(name, description, climates, sprite, separate, remap);
+	}
+
+	/** Construct the items for all child elements of a node. */
+	protected static Item[] readChildren(Node aNode) throws Exception
+	{
+		ArrayList<Item> items = new ArrayList<Item>();
+		for (Node node = aNode.getFirstChild(); node != null; node = node.getNextSibling()) {
+			if (node.getNodeType() == Node.ELEMENT_NODE) {
+				Item item = readElement((Element)node);
+				if (item != null) items.add(item);
+			}
+		}
+		return items.toArray(new Item[items.size()]);
+	}
+
+	/**
+	 * Parse the XML file; it is validated using 'recolor.xsd'.
+	 * @param aData Content of the XML file.
+	 * @return the root items.
+	 */
+	public static Item[] readXML(byte[] aData) throws Exception
+	{
+		SchemaFactory schema_factory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
+		DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+		factory.setIgnoringComments(true);
+		factory.setNamespaceAware(false);
+		factory.setCoalescing(true);
+		factory.setSchema(schema_factory.newSchema(RecolorDefinitions.class.getResource("recolor.xsd")));
+		DocumentBuilder builder = factory.newDocumentBuilder();
+		Document document = builder.parse(new ByteArrayInputStream(aData));
+		return readChildren(document);
+	}
+
+	/** Recursively write items in the binary format. */
+	private static void writeItems(DataOutputStream aOutput, Item[] aItems) throws IOException
+	{
+		aOutput.writeShort(aItems.length);
+		for (int i = 0; i < aItems.length; i++) {
+			Item item = aItems[i];
+			aOutput.writeByte(item.type);
+			aOutput.writeUTF(item.name);
+			aOutput.writeUTF(item.description);
+			int climates = 0;
+			for (int c = 0; c < item.climates.length; c++) {
+				if (item.climates[c]) climates |= 1 << c;
+			}
+			aOutput.writeByte(climates);
+			if (item.type == RECOLOR) {
+				aOutput.writeInt(item.sprite);
+				aOutput.writeShort(item.separate.length);
+				for (int j = 0; j < item.separate.length; j++) aOutput.writeByte(item.separate[j]);
+				for (int j = 0; j < 256; j++) aOutput.writeByte(item.remap[j]);
+			} else {
+				writeItems(aOutput, item.children);
+			}
+		}
+	}
+
+	/** Recursively read items in the binary format. */
+	private static Item[] readItems(DataInputStream aInput, byte[] aBuffer) throws IOException
+	{
+		Item[] items = new Item[aInput.readUnsignedShort()];
+		for (int i = 0; i < items.length; i++) {
+			int type = aInput.readUnsignedByte();
+			String name = aInput.readUTF();
+			String description = aInput.readUTF();
+			int climate_mask = aInput.readUnsignedByte();
+			boolean[] climates = new boolean[TTDPalette.NUM_CLIMATES];
+			for (int c = 0; c < climates.length; c++) {
+				climates[c] = (climate_mask & (1 << c)) != 0;
+			}
+			if (type == RECOLOR) {
+				int sprite = aInput.readInt();
+				int[] separate = new int[aInput.readUnsignedShort()];
+				aInput.readFully(aBuffer, 0, separate.length);
+				for (int j = 0; j < separate.length; j++) separate[j] = aBuffer[j] & 0xFF;
+				int[] remap = new int[256];
+				aInput.readFully(aBuffer, 0, 256);
+				for (int j = 0; j < 256; j++) remap[j] = aBuffer[j] & 0xFF;
+				items[i] = new Item(name, description, climates, sprite, separate, remap);
+			} else if (type == CHOICE || type == SEQUENCE) {
+				items[i] = new Item(type, name, description, climates, readItems(aInput, aBuffer));
+			} else {
+				throw new IOException("Unknown item type " + type);
+			}
+		}
+		return items;
+	}
+
+	/**
+	 * Write items in the binary format.
+	 * @param aItems Root items.
+	 * @param aChecksum Checksum of the XML file the items were read from.
+	 */
+	public static void writeBinary(Item[] aItems, long aChecksum, OutputStream aStream) throws IOException
+	{
+		DataOutputStream output = new DataOutputStream(new BufferedOutputStream(aStream));
+		output.writeInt(MAGIC);
+		output.writeInt(VERSION);
+		output.writeLong(aChecksum);
+		writeItems(output, aItems);
+		output.flush();
+	}
+
+	/**
+	 * Read items in the binary format.
+	 * @param aData Content of the binary file.
+	 * @param aChecksum Checksum of the current XML file.
+	 * @return the root items; null if the binary file is of a different version or was compiled from a different XML file.
+	 */
+	public static Item[] readBinary(byte[] aData, long aChecksum) throws IOException
+	{
+		DataInputStream input = new DataInputStream(new ByteArrayInputStream(aData));
+		if (input.readInt() != MAGIC || input.readInt() != VERSION || input.readLong() != aChecksum) return null;
+		return readItems(input, new byte[0x10000]);
+	}
+
+	/** Checksum of the XML file, to detect outdated binary files. */
+	public static long checksum(byte[] aData)
+	{
+		CRC32 crc = new CRC32();
+		crc.update(aData, 0, aData.length);
+		return crc.getValue();
+	}
+
+	/** Read a stream completely. */
+	protected static byte[] readAll(InputStream aStream) throws IOException
+	{
+		try {
+			ByteArrayOutputStream data = new ByteArrayOutputStream();
+			byte[] buffer = new byte[0x10000];
+			int count;
+			while ((count = aStream.read(buffer)) > 0) data.write(buffer, 0, count);
+			return data.toByteArray();
+		} finally {
+			aStream.close();
+		}
+	}
+
+	/**
+	 * Load the items of an XML resource, preferably from its compiled binary form.
+	 * @param aFileName Name of the XML resource, e.g. 'recolor.xml'. The binary resource has the extension '.bin' instead.
+	 * @return the root items.
+	 */
+	public static Item[] load(String aFileName) throws Exception
+	{
+		URL xml = RecolorDefinitions.class.getResource(aFileName);
+		if (xml == null) throw new FileNotFoundException(aFileName);
+		byte[] xml_data = readAll(xml.openStream());
+		long checksum = checksum(xml_data);
+
+		String binary_name = aFileName.replaceFirst("\\.xml$", "") + ".bin";
+		URL binary = RecolorDefinitions.class.getResource(binary_name);
+		if (binary != null) {
+			try {
+				Item[] items = readBinary(readAll(binary.openStream()), checksum);
+				if (items != null) return items;
+				System.out.println(binary_name + " is outdated, reading " + aFileName + " instead.");
+			} catch (IOException e) {
+				System.out.println(binary_name + " is invalid, reading " + aFileName + " instead: " + e.toString());
+			}
+		}
+		return readXML(xml_data);
+	}
+
+	/**
+	 * Get the items of an XML resource; it is only loaded on the first call.
+	 * @param aFileName Name of the XML resource, see {@link #load}.
+	 * @return the root items, shared between all callers.
+	 */
+	public static Item[] get(String aFileName) throws Exception
+	{
+		synchronized (fLoaded) {
+			Item[] items = fLoaded.get(aFileName);
+			if (items == null) {
+				items = load(aFileName);
+				fLoaded.put(aFileName, items);
+			}
+			return items;
+		}
+	}
+
+	/**
+	 * Compile an XML file into the binary format.
+	 * Usage: RecolorDefinitions &lt;recolor.xml&gt; &lt;recolor.bin&gt;
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		if (args.length != 2) {
+			System.out.println("Usage: RecolorDefinitions <recolor.xml> <recolor.bin>");
+			System.exit(1);
+		}
+		byte[] data = readAll(new FileInputStream(args[0]));
+		Item[] items = readXML(data);
+		OutputStream output = new FileOutputStream(args[1]);
+		try {
+			writeBinary(items, checksum(data), output);
+		} finally {
+			output.close();
+		}
+	}
+}
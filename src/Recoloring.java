@@ -5,14 +5,32 @@
  * See the GNU General Public License for more details. You should have received a copy of the GNU General Public License along with TTDViewer. If not, see <http://www.gnu.org/licenses/>.
  */
 
+import java.util.concurrent.*;
+import java.util.function.*;
+import java.util.stream.*;
 import java.awt.*;
 import java.awt.image.*;
 
 /** Class for mapping palette indexes to other indexes */
 class Recoloring {
+	/** Rasters with at least this number of pixels are recolored in parallel. */
+	public static final int PARALLEL_THRESHOLD = 1 << 20;
+
+	/** Minimum number of rows per band, when recoloring in parallel. */
+	private static final int MIN_BAND_HEIGHT = 64;
+
 	/** The actual remapping */
 	protected int[] fRemap = new int[256];
 
+	/** Incremented on every modification of {@link #fRemap} after construction. */
+	protected int fVersion = 0;
+
+	/** {@link #fRemap} as byte lookup table; null if not built yet. */
+	private byte[] fLookupTable = null;
+
+	/** Value of {@link #fVersion} when {@link #fLookupTable} was built. */
+	private int fLookupTableVersion = -1;
+
 	/**
 	 * Create the Identity.
 	 */
@@ -68,29 +86,130 @@ class Recoloring {
 		for (int i = 0; i < 256; i++) {
 			fRemap[i] = aRecoloring.fRemap[i];
 		}
+		fVersion++;
+	}
+
+	/**
+	 * Get the modification stamp.
+	 * It changes whenever the remapping of this object is modified.
+	 */
+	public int getVersion()
+	{
+		return fVersion;
+	}
+
+	/**
+	 * Get the remapping as lookup table for byte samples.
+	 * The table is built on first use and rebuilt after modifications.
+	 */
+	public synchronized byte[] getLookupTable()
+	{
+		if (fLookupTable == null || fLookupTableVersion != fVersion) {
+			byte[] table = new byte[256];
+			for (int i = 0; i < 256; i++) {
+				table[i] = (byte)fRemap[i];
+			}
+			fLookupTable = table;
+			fLookupTableVersion = fVersion;
+		}
+		return fLookupTable;
+	}
+
+	/**
+	 * Get the byte array of a raster with a single 8 bit sample per pixel stored consecutively.
+	 * @return the array; null if the raster is stored differently.
+	 */
+	protected static byte[] getByteData(Raster aRaster)
+	{
+		if (aRaster.getNumBands() != 1 || !(aRaster.getDataBuffer() instanceof DataBufferByte)) return null;
+		if (!(aRaster.getSampleModel() instanceof ComponentSampleModel)) return null;
+		ComponentSampleModel sample_model = (ComponentSampleModel)aRaster.getSampleModel();
+		if (sample_model.getPixelStride() != 1) return null;
+		return ((DataBufferByte)aRaster.getDataBuffer()).getData(sample_model.getBankIndices()[0]);
+	}
+
+	/** Get the index of the top left pixel of a raster in the array of {@link #getByteData}. */
+	protected static int getByteOffset(Raster aRaster)
+	{
+		ComponentSampleModel sample_model = (ComponentSampleModel)aRaster.getSampleModel();
+		int bank = sample_model.getBankIndices()[0];
+		return aRaster.getDataBuffer().getOffsets()[bank]
+				+ sample_model.getOffset(aRaster.getMinX() - aRaster.getSampleModelTranslateX(), aRaster.getMinY() - aRaster.getSampleModelTranslateY());
 	}
 
 	/**
 	 * Applies recoloring to every pixel of a raster.
 	 * Input and output raster may be the same.
+	 * Byte rasters with one sample per pixel, like those of IndexColorModel.createCompatibleWritableRaster
+	 * and their children, are remapped directly in their arrays.
+	 * Rasters with at least {@link #PARALLEL_THRESHOLD} pixels are split into bands of rows, which are
+	 * recolored in parallel on the current ForkJoinPool, or the common pool.
 	 * @param aInput Input raster
 	 * @param aOutput Output raster
 	 */
-	public void applyTo(Raster aInput, WritableRaster aOutput)
+	public void applyTo(final Raster aInput, final WritableRaster aOutput)
 	{
-		Rectangle bounds = aOutput.getBounds();
-		Rectangle input_bounds = aInput.getBounds();
+		final Rectangle bounds = aOutput.getBounds();
+		final Rectangle input_bounds = aInput.getBounds();
 		if (bounds.width != input_bounds.width || bounds.height != input_bounds.height) throw new IllegalArgumentException("Source and destination raster differ in size.");
 
 		if (bounds.width == 0 || bounds.height == 0) return;
 
+		int parallelism = ForkJoinTask.inForkJoinPool() ? ForkJoinTask.getPool().getParallelism() : ForkJoinPool.getCommonPoolParallelism();
+		if (parallelism <= 1 || (long)bounds.width * bounds.height < PARALLEL_THRESHOLD) {
+			applyToRows(aInput, aOutput);
+			return;
+		}
+
+		/* Several bands per thread, so threads finishing early can steal work */
+		final int band_height = Math.max(MIN_BAND_HEIGHT, bounds.height / (parallelism * 4));
+		int bands = (bounds.height + band_height - 1) / band_height;
+		IntStream.range(0, bands).parallel().forEach(new IntConsumer() {
+			@Override public void accept(int i)
+			{
+				int y = i * band_height;
+				int height = Math.min(band_height, bounds.height - y);
+				applyToRows(aInput.createChild(input_bounds.x, input_bounds.y + y, bounds.width, height, input_bounds.x, input_bounds.y + y, null),
+						aOutput.createWritableChild(bounds.x, bounds.y + y, bounds.width, height, bounds.x, bounds.y + y, null));
+			}
+		});
+	}
+
+	/**
+	 * Applies recoloring to every pixel of a raster in the current thread.
+	 * @param aInput Input raster
+	 * @param aOutput Output raster of the same size
+	 */
+	protected void applyToRows(Raster aInput, WritableRaster aOutput)
+	{
+		Rectangle bounds = aOutput.getBounds();
+		Rectangle input_bounds = aInput.getBounds();
+
+		byte[] input_data = getByteData(aInput);
+		byte[] output_data = getByteData(aOutput);
+		if (input_data != null && output_data != null) {
+			byte[] table = getLookupTable();
+			int input_pos = getByteOffset(aInput);
+			int output_pos = getByteOffset(aOutput);
+			int input_stride = ((ComponentSampleModel)aInput.getSampleModel()).getScanlineStride();
+			int output_stride = ((ComponentSampleModel)aOutput.getSampleModel()).getScanlineStride();
+			for (int y = 0; y < bounds.height; y++) {
+				for (int x = 0; x < bounds.width; x++) {
+					output_data[output_pos + x] = table[input_data[input_pos + x] & 0xFF];
+				}
+				input_pos += input_stride;
+				output_pos += output_stride;
+			}
+			return;
+		}
+
 		int[] row = new int[bounds.width];
 		for (int y = 0; y < bounds.height; y++) {
-			aInput.getSamples(0, y, bounds.width, 1, 0, row);
+			aInput.getSamples(input_bounds.x, input_bounds.y + y, bounds.width, 1, 0, row);
 			for (int x = 0; x < bounds.width; x++) {
 				row[x] = fRemap[row[x]];
 			}
-			aOutput.setSamples(0, y, bounds.width, 1, 0, row);
+			aOutput.setSamples(bounds.x, bounds.y + y, bounds.width, 1, 0, row);
 		}
 	}
 
@@ -100,6 +219,72 @@ class Recoloring {
 		applyTo(aRaster, aRaster);
 	}
 
+	/** Checks whether this is the Identity. */
+	public boolean isIdentity()
+	{
+		for (int i = 0; i < 256; i++) {
+			if (fRemap[i] != i) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Compose with another recoloring.
+	 * @param aNext Recoloring to apply after this one.
+	 * @return Recoloring with the same effect as applying this one and then aNext, in a single pass.
+	 */
+	public Recoloring then(Recoloring aNext)
+	{
+		int[] output = new int[256];
+		for (int i = 0; i < 256; i++) {
+			output[i] = aNext.fRemap[fRemap[i]];
+		}
+		return new Recoloring(output);
+	}
+
+	/**
+	 * Compose a chain of recolorings, e.g. WIN->DOS conversion, company colors and transparency.
+	 * Unlike {@link #Recoloring(Recoloring[])}, which overlays the recolorings, each one is applied to the result of the previous one.
+	 * Note: The viewer and BatchConverter do not stack recolorings this way. The WIN->DOS conversion is applied once while decoding,
+	 * and the items of 'recolor.xml' are overlays.
+	 * @param aChain Recolorings in order of application; null entries are skipped.
+	 * @return Recoloring with the same effect as applying all recolorings in order.
+	 */
+	public static Recoloring compose(Recoloring... aChain)
+	{
+		Recoloring result = new Recoloring();
+		for (int i = 0; i < aChain.length; i++) {
+			if (aChain[i] != null) result = result.then(aChain[i]);
+		}
+		return result;
+	}
+
+	/** Checks whether the remapping is a permutation, so it can be inverted. */
+	public boolean isInvertible()
+	{
+		boolean[] used = new boolean[256];
+		for (int i = 0; i < 256; i++) {
+			if (used[fRemap[i]]) return false;
+			used[fRemap[i]] = true;
+		}
+		return true;
+	}
+
+	/**
+	 * Get the inverse recoloring.
+	 * @return Recoloring undoing this one, so this.then(inverse()) is the identity; null if this is not invertible.
+	 * @see #isInvertible
+	 */
+	public Recoloring inverse()
+	{
+		if (!isInvertible()) return null;
+		int[] output = new int[256];
+		for (int i = 0; i < 256; i++) {
+			output[fRemap[i]] = i;
+		}
+		return new Recoloring(output);
+	}
+
 	/** Applies recoloring to a single color index */
 	public int applyTo(int aIndex)
 	{
@@ -109,6 +294,7 @@ class Recoloring {
 	/**
 	 * Transforms an other recoloring.
 	 * That is mainly useful, when this recoloring is one of the DOS->WIN / WIN->DOS conversions.
+	 * Unlike {@link #inverse}, this also works for recolorings which are not invertible.
 	 * @param aInput Recoloring to transform.
 	 * @return The transformed recoloring "this * aInput * inverse(this)".
 	 */
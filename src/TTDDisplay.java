@@ -6,6 +6,7 @@
  */
 
 import java.io.*;
+import java.util.*;
 import java.awt.*;
 import java.awt.geom.*;
 import java.awt.event.*;
@@ -25,6 +26,39 @@ public class TTDDisplay extends JPanel {
 	/** Current zoomlevel */
 	protected int fZoom = 1;
 
+	/** Colors of the color model used by the last repaint request; null to repaint everything. */
+	protected int[] fShownColors = null;
+
+	/** Renders the zoomed image through a back buffer. */
+	protected IndexedRenderer fRenderer = new IndexedRenderer();
+
+	/** Cached rendering of the visible region; a VolatileImage if possible. */
+	protected Image fFrame = null;
+
+	/** Region of the display in {@link #fFrame}. */
+	protected Rectangle fFrameBounds = null;
+
+	/** Whether {@link #fFrame} has valid contents, except for {@link #fFrameDirty}. */
+	protected boolean fFrameValid = false;
+
+	/** Regions of the display, which have to be rendered again into {@link #fFrame}. */
+	protected ArrayList<Rectangle> fFrameDirty = new ArrayList<Rectangle>();
+
+	/** Number of dirty regions, after which they are merged into their bounding box. */
+	protected static final int MAX_FRAME_DIRTY = 64;
+
+	/** Time changed regions are highlighted after a reload. */
+	public static final int HIGHLIGHT_MILLIS = 1000;
+
+	/** Color to highlight changed regions with. */
+	protected static final Color HIGHLIGHT_COLOR = new Color(255, 0, 0, 96);
+
+	/** Highlighted regions in image coordinates; drawn on top of {@link #fFrame}. */
+	protected ArrayList<Rectangle> fHighlights = new ArrayList<Rectangle>();
+
+	/** Removes the highlights after {@link #HIGHLIGHT_MILLIS}. */
+	protected javax.swing.Timer fHighlightTimer;
+
 	/** Listeners to notify on changes in zoom level, file loading, etc. */
 	private DefaultChangeEventTrigger fChangeEventListeres = new DefaultChangeEventTrigger();
 
@@ -38,7 +72,7 @@ public class TTDDisplay extends JPanel {
 		fPalette.addChangeListener(new ChangeListener() {
 			@Override public void stateChanged(ChangeEvent e)
 			{
-				repaint();
+				repaintChangedColors();
 			}
 		});
 
@@ -69,6 +103,15 @@ public class TTDDisplay extends JPanel {
 			}
 		});
 
+		fHighlightTimer = new javax.swing.Timer(HIGHLIGHT_MILLIS, new ActionListener() {
+			@Override public void actionPerformed(ActionEvent e)
+			{
+				for (Rectangle highlight : fHighlights) repaint(zoomRegion(highlight));
+				fHighlights.clear();
+			}
+		});
+		fHighlightTimer.setRepeats(false);
+
 		fImage = TTDImage.createBlank(aPalette, 1, 1);
 		updateSize();
 	}
@@ -79,52 +122,85 @@ public class TTDDisplay extends JPanel {
 	 */
 	public void loadFrom(File aFile) throws Exception
 	{
-		fImage = TTDImage.createFrom(fPalette, aFile);
+		setImage(TTDImage.createFrom(fPalette, aFile));
+	}
+
+	/** Get the shown image. Must be called on the event dispatch thread. */
+	public TTDImage getImage()
+	{
+		return fImage;
+	}
+
+	/**
+	 * Replace the shown image, e.g. by one decoded in the background.
+	 * The previous image is flushed. Must be called on the event dispatch thread.
+	 * @param aImage New image.
+	 */
+	public void setImage(TTDImage aImage)
+	{
+		fImage.flush();
+		fImage = aImage;
+		fHighlights.clear();
 		updateSize();
 	}
 
+	/**
+	 * Replace the shown image by a newer version, e.g. after the file changed on disk.
+	 * If both have the same size, only the changed tiles are copied and repainted, and the rest of the cached frame is kept.
+	 * Must be called on the event dispatch thread.
+	 * @param aImage New image; it is flushed if only its changed tiles are used.
+	 * @param aHighlight Highlight the changed regions for {@link #HIGHLIGHT_MILLIS}.
+	 * @return Number of changed tiles; -1 if the image was replaced completely.
+	 */
+	public int reloadImage(TTDImage aImage, boolean aHighlight)
+	{
+		ArrayList<Rectangle> changed = fImage.patchFrom(aImage);
+		if (changed == null) {
+			setImage(aImage);
+			return -1;
+		}
+		aImage.flush();
+
+		for (Rectangle bounds : changed) {
+			Rectangle zoomed = zoomRegion(bounds);
+			invalidateFrame(zoomed);
+			repaint(zoomed);
+		}
+		if (aHighlight && !changed.isEmpty()) {
+			fHighlights.addAll(changed);
+			fHighlightTimer.restart();
+		}
+		return changed.size();
+	}
+
+	/** Get the region of the display showing a region of the image. */
+	protected Rectangle zoomRegion(Rectangle aRegion)
+	{
+		return new Rectangle(aRegion.x * fZoom, aRegion.y * fZoom, aRegion.width * fZoom, aRegion.height * fZoom);
+	}
+
 	/**
 	 * Save the image to File.
 	 * @param aFile File to write to
+	 * @param aFileFormat Format name known to ImageIO, including "pcx"
 	 * @param aSaveTransparentAsBlue Save transparante pixels as blue pixels.
 	 * @param aSaveRecolored Save recolored
 	 * @param aSaveZoomed Save zoomed
 	 * @param aSaveAnimState Use the current animation state; else use a fixed state
+	 * @param aPNGOptions Compression options, if saving as "png"
 	 */
-	public void saveTo(File aFile, String aFileFormat, boolean aSaveTransparentAsBlue, boolean aSaveRecolored, boolean aSaveZoomed, boolean aSaveAnimState) throws Exception
+	public void saveTo(File aFile, String aFileFormat, boolean aSaveTransparentAsBlue, boolean aSaveRecolored, boolean aSaveZoomed, boolean aSaveAnimState, PNG.Options aPNGOptions) throws Exception
 	{
 		Palette pal = aSaveAnimState ? fPalette : fPalette.getUnanimatedPalette();
 		IndexColorModel color_model = pal.getColorModel(aSaveTransparentAsBlue);
-
-		WritableRaster pixel_data = fImage.getRaster();
-		int width = pixel_data.getWidth();
-		int height = pixel_data.getHeight();
-
-		if (aSaveRecolored) {
-			WritableRaster recolored = color_model.createCompatibleWritableRaster(width, height);
-			fPalette.global_recoloring.applyTo(pixel_data, recolored);
-			pixel_data = recolored;
-		}
-
-		if (aSaveZoomed && fZoom > 1) {
-			WritableRaster zoomed = color_model.createCompatibleWritableRaster(width * fZoom, height * fZoom);
-			int[] row_in = new int[width];
-			int[] row_out = new int[width * fZoom];
-			for (int y = 0; y < height; y++) {
-				pixel_data.getSamples(0, y, width, 1, 0, row_in);
-				for (int x = 0; x < width; x++) {
-					for (int i = 0; i < fZoom; i++) {
-						row_out[x * fZoom + i] = row_in[x];
-					}
-				}
-				for (int i = 0; i < fZoom; i++) {
-					zoomed.setSamples(0, y * fZoom + i, width * fZoom, 1, 0, row_out);
-				}
-			}
-			pixel_data = zoomed;
+		Recoloring recoloring = aSaveRecolored ? fPalette.global_recoloring : null;
+		int zoom = aSaveZoomed ? fZoom : 1;
+		if (aFileFormat.equalsIgnoreCase("png")) {
+			/* Stream the rows, instead of creating a recolored and zoomed copy of the whole image */
+			PNG.saveTo(fImage, color_model, recoloring, zoom, aPNGOptions, aFile);
+			return;
 		}
-
-		BufferedImage output_image = new BufferedImage(color_model, pixel_data, false, null);
+		BufferedImage output_image = fImage.createOutputImage(color_model, recoloring, zoom);
 		if (!ImageIO.write(output_image, aFileFormat, aFile)) {
 			throw new Exception("No writer for this file format available.");
 		}
@@ -252,13 +328,15 @@ public class TTDDisplay extends JPanel {
 		scrollViewportToScreen(viewportFromPixel(p), s);
 	}
 
-	/** Resize this to match image bounds and zoomlevel */
+	/** Resize this to match image bounds and zoomlevel, and repaint everything */
 	protected void updateSize()
 	{
 		Dimension size = fImage.getSize();
 		Dimension new_size = new Dimension(size.width * fZoom, size.height * fZoom);
 		setPreferredSize(new_size);
 		setSize(new_size);
+		invalidateFrame();
+		repaint();
 		fireChangeEvent();
 	}
 
@@ -299,34 +377,198 @@ public class TTDDisplay extends JPanel {
 		}
 	}
 
-	@Override protected void paintComponent(Graphics g)
+	/**
+	 * Request repainting of the visible tiles, whose colors changed since the last request.
+	 * Palette animation only affects few color indices, so usually most of the image is skipped,
+	 * and images without animated colors are not repainted at all.
+	 */
+	protected void repaintChangedColors()
 	{
-		Rectangle display_bounds = g.getClipBounds();
-		int x = display_bounds.x / fZoom;
-		int y = display_bounds.y / fZoom;
-		int width = display_bounds.width / fZoom + 2;
-		int height = display_bounds.height / fZoom + 2;
+		int[] colors = new int[256];
+		fPalette.getColorModel(fPalette.global_recoloring, false).getRGBs(colors);
+		int[] old_colors = fShownColors;
+		fShownColors = colors;
+		if (old_colors == null) {
+			invalidateFrame();
+			repaint();
+			return;
+		}
 
-		Dimension size = fImage.getSize();
-		if (x + width > size.width) width = size.width - x;
-		if (y + height > size.height) height = size.height - y;
+		long[] changed = new long[4];
+		boolean any_changed = false;
+		for (int i = 0; i < 256; i++) {
+			if (colors[i] != old_colors[i]) {
+				changed[i >> 6] |= 1L << i;
+				any_changed = true;
+			}
+		}
+		if (!any_changed || !fImage.mayUseColors(changed)) return;
+
+		Rectangle visible = getVisibleRect();
+		if (visible.isEmpty()) return;
+		int tx0 = visible.x / fZoom / TTDImage.TILE_SIZE;
+		int ty0 = visible.y / fZoom / TTDImage.TILE_SIZE;
+		int tx1 = (visible.x + visible.width - 1) / fZoom / TTDImage.TILE_SIZE;
+		int ty1 = (visible.y + visible.height - 1) / fZoom / TTDImage.TILE_SIZE;
+		Dimension count = fImage.getTileCount();
+		if (tx1 >= count.width) tx1 = count.width - 1;
+		if (ty1 >= count.height) ty1 = count.height - 1;
+
+		for (int ty = ty0; ty <= ty1; ty++) {
+			for (int tx = tx0; tx <= tx1; tx++) {
+				if (!fImage.mayUseColors(tx, ty, changed)) continue;
+				Rectangle zoomed = zoomRegion(fImage.getTileBounds(tx, ty));
+				invalidateFrame(zoomed);
+				repaint(zoomed);
+			}
+		}
+	}
 
-		if (width <= 0 || height <= 0) return;
+	/** Render everything again on the next paint. */
+	protected void invalidateFrame()
+	{
+		fFrameValid = false;
+		fFrameDirty.clear();
+	}
 
-		int output_x = x * fZoom;
-		int output_y = y * fZoom;
-		int output_width = width * fZoom;
-		int output_height = height * fZoom;
+	/**
+	 * Render a region again on the next paint.
+	 * @param aRegion Region of the display.
+	 */
+	protected void invalidateFrame(Rectangle aRegion)
+	{
+		if (!fFrameValid) return;
+		fFrameDirty.add(aRegion);
+		if (fFrameDirty.size() > MAX_FRAME_DIRTY) {
+			Rectangle bounds = new Rectangle(aRegion);
+			for (Rectangle dirty : fFrameDirty) bounds.add(dirty);
+			fFrameDirty.clear();
+			fFrameDirty.add(bounds);
+		}
+	}
+
+	/** Release the memory of the image when the display is disposed. */
+	@Override public void removeNotify()
+	{
+		super.removeNotify();
+		fImage.flush();
+		fRenderer.flush();
+		if (fFrame != null) fFrame.flush();
+		fFrame = null;
+		invalidateFrame();
+	}
 
+	/**
+	 * Render a region of the display.
+	 * @param g Graphics in display coordinates.
+	 * @param aRegion Region of the display.
+	 */
+	protected void paintRegion(Graphics g, Rectangle aRegion)
+	{
+		Dimension size = fImage.getSize();
 		/* Clear background if not completely covered by image */
-		if (output_x > display_bounds.x || output_y > display_bounds.y
-				|| (output_x + output_width  < display_bounds.x + display_bounds.width )
-				|| (output_y + output_height < display_bounds.y + display_bounds.height)) {
+		if (aRegion.x + aRegion.width > size.width * fZoom || aRegion.y + aRegion.height > size.height * fZoom) {
 			g.setColor(getBackground());
-			g.fillRect(display_bounds.x, display_bounds.y, display_bounds.width, display_bounds.height);
+			g.fillRect(aRegion.x, aRegion.y, aRegion.width, aRegion.height);
+		}
+
+		IndexColorModel color_model = fPalette.getColorModel(fPalette.global_recoloring, false);
+		fRenderer.paint(g, fImage, color_model, fZoom, aRegion, getVisibleRect().getSize());
+	}
+
+	/**
+	 * Bring {@link #fFrame} up to date for the visible region.
+	 * When scrolling, the still visible part is moved within the frame, and only the exposed strips are rendered.
+	 * @param aVisible Visible region of the display.
+	 */
+	protected void updateFrame(Rectangle aVisible)
+	{
+		if (fFrame != null && (fFrame.getWidth(null) != aVisible.width || fFrame.getHeight(null) != aVisible.height)) {
+			fFrame.flush();
+			fFrame = null;
+		}
+		GraphicsConfiguration config = getGraphicsConfiguration();
+		if (fFrame instanceof VolatileImage) {
+			int state = ((VolatileImage)fFrame).validate(config);
+			if (state == VolatileImage.IMAGE_INCOMPATIBLE) {
+				fFrame.flush();
+				fFrame = null;
+			} else if (state == VolatileImage.IMAGE_RESTORED) {
+				invalidateFrame();
+			}
 		}
+		if (fFrame == null) {
+			fFrame = (config != null) ? config.createCompatibleVolatileImage(aVisible.width, aVisible.height) : new BufferedImage(aVisible.width, aVisible.height, BufferedImage.TYPE_INT_RGB);
+			invalidateFrame();
+		}
+
+		Graphics frame_graphics = fFrame.getGraphics();
+		try {
+			if (fFrameValid && !aVisible.getLocation().equals(fFrameBounds.getLocation())) {
+				Rectangle kept = aVisible.intersection(fFrameBounds);
+				if (kept.isEmpty()) {
+					invalidateFrame();
+				} else {
+					/* Move the still visible part, and render the exposed strips */
+					frame_graphics.copyArea(kept.x - fFrameBounds.x, kept.y - fFrameBounds.y, kept.width, kept.height, fFrameBounds.x - aVisible.x, fFrameBounds.y - aVisible.y);
+					if (kept.y > aVisible.y) invalidateFrame(new Rectangle(aVisible.x, aVisible.y, aVisible.width, kept.y - aVisible.y));
+					if (kept.y + kept.height < aVisible.y + aVisible.height) invalidateFrame(new Rectangle(aVisible.x, kept.y + kept.height, aVisible.width, aVisible.y + aVisible.height - kept.y - kept.height));
+					if (kept.x > aVisible.x) invalidateFrame(new Rectangle(aVisible.x, kept.y, kept.x - aVisible.x, kept.height));
+					if (kept.x + kept.width < aVisible.x + aVisible.width) invalidateFrame(new Rectangle(kept.x + kept.width, kept.y, aVisible.x + aVisible.width - kept.x - kept.width, kept.height));
+				}
+			}
+			fFrameBounds = new Rectangle(aVisible);
+			if (!fFrameValid) {
+				fFrameDirty.clear();
+				fFrameDirty.add(new Rectangle(aVisible));
+				fFrameValid = true;
+			}
 
-		ColorModel color_model = fPalette.getColorModel(fPalette.global_recoloring, false);
-		g.drawImage(fImage.getImage(color_model, x, y, width, height), output_x, output_y, output_width, output_height, Color.WHITE, null);
+			frame_graphics.translate(-aVisible.x, -aVisible.y);
+			ArrayList<Rectangle> failed = new ArrayList<Rectangle>();
+			for (Rectangle dirty : fFrameDirty) {
+				Rectangle region = dirty.intersection(aVisible);
+				if (region.isEmpty()) continue;
+				paintRegion(frame_graphics, region);
+				/* Keep regions, which could not be decoded, dirty; they are retried on the next paint */
+				int x0 = region.x / fZoom;
+				int y0 = region.y / fZoom;
+				Rectangle image_region = new Rectangle(x0, y0, (region.x + region.width + fZoom - 1) / fZoom - x0, (region.y + region.height + fZoom - 1) / fZoom - y0);
+				if (fImage.hasFailedTiles(image_region)) failed.add(region);
+			}
+			fFrameDirty.clear();
+			fFrameDirty.addAll(failed);
+		} finally {
+			frame_graphics.dispose();
+		}
+	}
+
+	@Override protected void paintComponent(Graphics g)
+	{
+		Rectangle clip = g.getClipBounds();
+		Rectangle visible = getVisibleRect();
+		if (clip == null) clip = visible;
+		if (clip.isEmpty()) return;
+
+		if (!visible.contains(clip)) {
+			/* E.g. printing; render directly */
+			paintRegion(g, clip);
+		} else {
+			for (int attempt = 0; attempt < 2; attempt++) {
+				updateFrame(visible);
+				g.drawImage(fFrame, clip.x, clip.y, clip.x + clip.width, clip.y + clip.height,
+						clip.x - visible.x, clip.y - visible.y, clip.x - visible.x + clip.width, clip.y - visible.y + clip.height, null);
+				if (!(fFrame instanceof VolatileImage) || !((VolatileImage)fFrame).contentsLost()) break;
+				invalidateFrame();
+			}
+		}
+
+		if (!fHighlights.isEmpty()) {
+			g.setColor(HIGHLIGHT_COLOR);
+			for (Rectangle highlight : fHighlights) {
+				Rectangle zoomed = zoomRegion(highlight);
+				if (zoomed.intersects(clip)) g.fillRect(zoomed.x, zoomed.y, zoomed.width, zoomed.height);
+			}
+		}
 	}
 }
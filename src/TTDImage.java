@@ -13,12 +13,76 @@ import java.awt.image.*;
 import javax.swing.*;
 import javax.swing.event.*;
 import javax.imageio.*;
+import javax.imageio.event.*;
+import javax.imageio.stream.*;
 
 /** Class to hold a TTD related image, recolor it and draw it or subsets of it. */
 public class TTDImage {
+	static {
+		PCX.registerImageIO();
+	}
+
+	/** Width and height of the tiles, used for lazy decoding and for tracking the used colors. */
+	public static final int TILE_SIZE = 256;
+
 	/** Image with indexed colors */
 	protected WritableRaster fPixelData = null;
 
+	/** Number of pixels per color index; null if not counted yet. */
+	protected long[] fColorHistogram = null;
+
+	/**
+	 * Color indices used per tile, indexed by [tile row][tile column]; null if not counted yet.
+	 * Each entry is a set of 256 bits, see {@link #getTileColors}.
+	 */
+	protected long[][][] fTileColors = null;
+
+	/** Hashes of the pixels per tile, indexed by [tile row][tile column]; null if not computed yet. */
+	protected long[][] fTileHashes = null;
+
+	/**
+	 * Aborts an ImageReader, when the reading thread gets interrupted, e.g. by Future.cancel(true).
+	 * Readers report their progress every few rows, while the file they read from ignores interrupts.
+	 */
+	protected static class AbortOnInterrupt implements IIOReadProgressListener {
+		@Override public void imageProgress(ImageReader aSource, float aPercentageDone)
+		{
+			if (Thread.currentThread().isInterrupted()) aSource.abort();
+		}
+
+		@Override public void sequenceStarted(ImageReader aSource, int aMinIndex)
+		{
+		}
+
+		@Override public void sequenceComplete(ImageReader aSource)
+		{
+		}
+
+		@Override public void imageStarted(ImageReader aSource, int aImageIndex)
+		{
+		}
+
+		@Override public void imageComplete(ImageReader aSource)
+		{
+		}
+
+		@Override public void thumbnailStarted(ImageReader aSource, int aImageIndex, int aThumbnailIndex)
+		{
+		}
+
+		@Override public void thumbnailProgress(ImageReader aSource, float aPercentageDone)
+		{
+		}
+
+		@Override public void thumbnailComplete(ImageReader aSource)
+		{
+		}
+
+		@Override public void readAborted(ImageReader aSource)
+		{
+		}
+	}
+
 	/**
 	 * Create an image.
 	 * Note there are more useful static methods to create an image.
@@ -32,6 +96,11 @@ public class TTDImage {
 		fPixelData = aRaster;
 	}
 
+	/** Constructor for subclasses managing the pixel data themself. */
+	protected TTDImage()
+	{
+	}
+
 	/**
 	 * Create empty (transparent) image.
 	 * @param aPalette Palette to use.
@@ -57,6 +126,45 @@ public class TTDImage {
 				&& Math.abs(((aColor1 >> 16) & 0xFF) - ((aColor2 >> 16) & 0xFF)) < 7;
 	}
 
+	/**
+	 * Detect whether an indexed image uses the DOS or WIN palette.
+	 * The function tests the grayscale colors to detect DOS/WIN palette.
+	 * @param aPalette Palette to use.
+	 * @param aColorModel Color model of the image.
+	 * @return true for WIN palette, false for DOS palette.
+	 * @throws Exception if the palette is neither.
+	 */
+	protected static boolean isWinPalette(TTDPalette aPalette, ColorModel aColorModel) throws Exception
+	{
+		boolean maybe_dos = true;
+		boolean maybe_win = true;
+		try {
+			/* Traverse gray scale */
+			for (int i = 0; i < aPalette.GRAYSCALE.length; i++) {
+				int test_index = aPalette.GRAYSCALE[i];
+				int test_color = aPalette.DOS_PALETTE[test_index];
+
+				int dos_color = aColorModel.getRGB(test_index);
+				maybe_dos &= mayColorsBeEqual(test_color, dos_color);
+
+				int win_color = aColorModel.getRGB(aPalette.CONVERT_TO_WIN.fRemap[test_index]);
+				maybe_win &= mayColorsBeEqual(test_color, win_color);
+			}
+		} catch (Exception e) {
+			throw new Exception("Invalid indexed image.");
+		}
+		if (maybe_dos == maybe_win) {
+			throw new Exception("Palette not detected.");
+		}
+
+		if (maybe_win) {
+			System.out.println("WIN palette detected. Converting.");
+		} else {
+			System.out.println("DOS palette detected.");
+		}
+		return maybe_win;
+	}
+
 	/**
 	 * Create image from a BufferedImage.
 	 * The given image must use indexed colors from either TTD's DOS or WIN palette.
@@ -68,36 +176,17 @@ public class TTDImage {
 	public static TTDImage createFrom(TTDPalette aPalette, BufferedImage aImage) throws Exception
 	{
 		if (aImage.getType() == BufferedImage.TYPE_BYTE_INDEXED) {
-			ColorModel color_model = aImage.getColorModel();
-			boolean maybe_dos = true;
-			boolean maybe_win = true;
-			try {
-				/* Traverse gray scale */
-				for (int i = 0; i < aPalette.GRAYSCALE.length; i++) {
-					int test_index = aPalette.GRAYSCALE[i];
-					int test_color = aPalette.DOS_PALETTE[test_index];
-
-					int dos_color = color_model.getRGB(test_index);
-					maybe_dos &= mayColorsBeEqual(test_color, dos_color);
-
-					int win_color = color_model.getRGB(aPalette.CONVERT_TO_WIN.fRemap[test_index]);
-					maybe_win &= mayColorsBeEqual(test_color, win_color);
-				}
-			} catch (Exception e) {
-				throw new Exception("Invalid indexed image.");
-			}
-			if (maybe_dos == maybe_win) {
-				throw new Exception("Palette not detected.");
-			}
+			boolean win = isWinPalette(aPalette, aImage.getColorModel());
 
 			TTDImage result = createBlank(aPalette, aImage.getWidth(), aImage.getHeight());
-			result.fPixelData.setRect(aImage.getRaster());
-			if (maybe_win) {
-				System.out.println("WIN palette detected. Converting.");
-				aPalette.CONVERT_FROM_WIN.applyTo(result.fPixelData);
+			if (win) {
+				/* Copy and convert in one pass */
+				aPalette.CONVERT_FROM_WIN.applyTo(aImage.getRaster(), result.fPixelData);
 			} else {
-				System.out.println("DOS palette detected.");
+				result.fPixelData.setRect(aImage.getRaster());
 			}
+			/* Count now on the loading thread, instead of at the first paint */
+			result.countColors();
 			return result;
 		} else {
 			throw new Exception("No indexed image.");
@@ -109,17 +198,41 @@ public class TTDImage {
 	 * The given image must use indexed colors from either TTD's DOS or WIN palette.
 	 * The function tests the grayscale colors to detect DOS/WIN palette.
 	 * Supported are .pcx files and everything Java knows itself.
+	 * Images with at least {@link TiledTTDImage#LAZY_THRESHOLD} pixels are decoded lazily.
 	 * @param aPalette Palette to use.
 	 * @param aFile File to read from.
 	 * @return new image, or null if the source is not valid.
 	 */
 	public static TTDImage createFrom(TTDPalette aPalette, File aFile) throws Exception
 	{
-		/* First try our own PCX thingie */
-		BufferedImage image = PCX.loadFrom(aFile);
-		if (image == null) image = ImageIO.read(aFile);
-		if (image == null) throw new Exception("Unknown file format");
-		return createFrom(aPalette, image);
+		if (!aFile.canRead()) throw new Exception("Cannot read file.");
+
+		/* Probe the format only once; PCX is registered to ImageIO as well */
+		ImageInputStream stream = ImageIO.createImageInputStream(aFile);
+		ImageReader reader = null;
+		try {
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+			if (!readers.hasNext()) throw new Exception("Unknown file format");
+			reader = readers.next();
+			reader.setInput(stream, true);
+
+			if ((long)reader.getWidth(0) * reader.getHeight(0) >= TiledTTDImage.LAZY_THRESHOLD) {
+				return TiledTTDImage.createFrom(aPalette, aFile, reader);
+			}
+			if (reader instanceof PCXImageReader) {
+				/* Decode from a mapped file or a single bulk read, instead of through the ImageInputStream */
+				BufferedImage image = PCX.loadFrom(aFile);
+				if (image == null) throw new Exception("Invalid PCX file.");
+				return createFrom(aPalette, image);
+			}
+			reader.addIIOReadProgressListener(new AbortOnInterrupt());
+			BufferedImage image = reader.read(0);
+			if (Thread.currentThread().isInterrupted()) throw new InterruptedIOException("Loading cancelled.");
+			return createFrom(aPalette, image);
+		} finally {
+			if (reader != null) reader.dispose();
+			stream.close();
+		}
 	}
 
 	/**
@@ -133,19 +246,264 @@ public class TTDImage {
 	 */
 	public static TTDImage createFrom(TTDPalette aPalette, InputStream aStream) throws Exception
 	{
-		/* First try our own PCX thingie */
-		BufferedImage image = PCX.loadFrom(aStream);
-		if (image == null) image = ImageIO.read(aStream);
+		/* PCX is registered to ImageIO as well */
+		BufferedImage image = ImageIO.read(aStream);
 		if (image == null) throw new Exception("Unknown file format");
 		return createFrom(aPalette, image);
 	}
 
+	/**
+	 * Release memory which can be restored when needed.
+	 * The image stays usable.
+	 */
+	public void flush()
+	{
+	}
+
 	/** Get image dimension. */
 	public Dimension getSize()
 	{
 		return fPixelData.getBounds().getSize();
 	}
 
+	/** Get the number of tile columns and rows. */
+	public Dimension getTileCount()
+	{
+		Dimension size = getSize();
+		return new Dimension((size.width + TILE_SIZE - 1) / TILE_SIZE, (size.height + TILE_SIZE - 1) / TILE_SIZE);
+	}
+
+	/** Get the bounds of a tile, clipped to the image. */
+	public Rectangle getTileBounds(int aTileX, int aTileY)
+	{
+		Rectangle bounds = new Rectangle(aTileX * TILE_SIZE, aTileY * TILE_SIZE, TILE_SIZE, TILE_SIZE);
+		return bounds.intersection(new Rectangle(getSize()));
+	}
+
+	/**
+	 * Count the color indices of a raster.
+	 * @param aRaster Raster to count.
+	 * @param aHistogram Number of pixels per color index, to add to.
+	 * @param aColors Set of 256 bits, to add the used color indices to.
+	 */
+	protected static void countColors(Raster aRaster, long[] aHistogram, long[] aColors)
+	{
+		int width = aRaster.getWidth();
+		byte[] data = Recoloring.getByteData(aRaster);
+		if (data != null) {
+			/* Count into a local table, then fold it into the bit set once */
+			int[] counts = new int[256];
+			int pos = Recoloring.getByteOffset(aRaster);
+			int stride = ((ComponentSampleModel)aRaster.getSampleModel()).getScanlineStride();
+			for (int y = 0; y < aRaster.getHeight(); y++) {
+				for (int x = 0; x < width; x++) {
+					counts[data[pos + x] & 0xFF]++;
+				}
+				pos += stride;
+			}
+			for (int c = 0; c < 256; c++) {
+				if (counts[c] == 0) continue;
+				aHistogram[c] += counts[c];
+				aColors[c >> 6] |= 1L << c;
+			}
+			return;
+		}
+
+		int[] row = new int[width];
+		for (int y = 0; y < aRaster.getHeight(); y++) {
+			aRaster.getSamples(aRaster.getMinX(), aRaster.getMinY() + y, width, 1, 0, row);
+			for (int x = 0; x < width; x++) {
+				int c = row[x] & 0xFF;
+				aHistogram[c]++;
+				aColors[c >> 6] |= 1L << c;
+			}
+		}
+	}
+
+	/** Count the color indices of all tiles. */
+	protected void countColors()
+	{
+		Dimension count = getTileCount();
+		long[] histogram = new long[256];
+		long[][][] tile_colors = new long[count.height][count.width][4];
+		for (int ty = 0; ty < count.height; ty++) {
+			for (int tx = 0; tx < count.width; tx++) {
+				Rectangle bounds = getTileBounds(tx, ty);
+				countColors(fPixelData.createChild(bounds.x, bounds.y, bounds.width, bounds.height, bounds.x, bounds.y, null), histogram, tile_colors[ty][tx]);
+			}
+		}
+		fColorHistogram = histogram;
+		fTileColors = tile_colors;
+	}
+
+	/** Compute a 64 bit FNV-1a hash of the pixels of a raster. */
+	protected static long hashPixels(Raster aRaster)
+	{
+		int width = aRaster.getWidth();
+		long hash = 0xCBF29CE484222325L;
+		byte[] data = Recoloring.getByteData(aRaster);
+		if (data != null) {
+			int pos = Recoloring.getByteOffset(aRaster);
+			int stride = ((ComponentSampleModel)aRaster.getSampleModel()).getScanlineStride();
+			for (int y = 0; y < aRaster.getHeight(); y++) {
+				for (int x = 0; x < width; x++) {
+					hash = (hash ^ (data[pos + x] & 0xFF)) * 0x100000001B3L;
+				}
+				pos += stride;
+			}
+			return hash;
+		}
+
+		int[] row = new int[width];
+		for (int y = 0; y < aRaster.getHeight(); y++) {
+			aRaster.getSamples(aRaster.getMinX(), aRaster.getMinY() + y, width, 1, 0, row);
+			for (int x = 0; x < width; x++) {
+				hash = (hash ^ (row[x] & 0xFF)) * 0x100000001B3L;
+			}
+		}
+		return hash;
+	}
+
+	/**
+	 * Compute the hashes of all tiles, which are used by {@link #patchFrom}.
+	 * This may be called in a background thread, before the image is shown.
+	 */
+	public void computeTileHashes()
+	{
+		fTileHashes = hashTiles();
+	}
+
+	/**
+	 * Compute the hashes of all tiles, without storing them.
+	 * Unlike {@link #computeTileHashes}, this may be called in a background thread while the image is shown;
+	 * the result is stored by {@link #initTileHashes} on the event dispatch thread.
+	 * @return Hashes indexed by [tile row][tile column].
+	 */
+	public long[][] hashTiles()
+	{
+		Dimension count = getTileCount();
+		long[][] hashes = new long[count.height][count.width];
+		for (int ty = 0; ty < count.height; ty++) {
+			for (int tx = 0; tx < count.width; tx++) {
+				Rectangle bounds = getTileBounds(tx, ty);
+				hashes[ty][tx] = hashPixels(fPixelData.createChild(bounds.x, bounds.y, bounds.width, bounds.height, bounds.x, bounds.y, null));
+			}
+		}
+		return hashes;
+	}
+
+	/**
+	 * Store the result of {@link #hashTiles}, unless the hashes are known already.
+	 * If {@link #patchFrom} was called meanwhile, it computed the hashes itself, and the given ones may be outdated.
+	 * @param aHashes Hashes of all tiles; null if unknown.
+	 */
+	public void initTileHashes(long[][] aHashes)
+	{
+		if (fTileHashes == null) fTileHashes = aHashes;
+	}
+
+	/**
+	 * Copy the tiles of another image, which differ from this image.
+	 * The tiles are compared by their hashes; the colors of changed tiles are counted again.
+	 * @param aImage Image of the same size, usually a newer version of the same file.
+	 * @return Bounds of the changed tiles; null if the images cannot be compared, e.g. due to different sizes.
+	 */
+	public ArrayList<Rectangle> patchFrom(TTDImage aImage)
+	{
+		if (aImage instanceof TiledTTDImage || !aImage.getSize().equals(getSize())) return null;
+		if (fTileHashes == null) computeTileHashes();
+		if (aImage.fTileHashes == null) aImage.computeTileHashes();
+
+		ArrayList<Rectangle> changed = new ArrayList<Rectangle>();
+		Dimension count = getTileCount();
+		for (int ty = 0; ty < count.height; ty++) {
+			for (int tx = 0; tx < count.width; tx++) {
+				if (aImage.fTileHashes[ty][tx] == fTileHashes[ty][tx]) continue;
+				Rectangle bounds = getTileBounds(tx, ty);
+				Raster tile = aImage.fPixelData.createChild(bounds.x, bounds.y, bounds.width, bounds.height, bounds.x, bounds.y, null);
+				if (fColorHistogram != null) {
+					/* Replace the counts of the old tile by the ones of the new tile */
+					long[] old_histogram = new long[256];
+					countColors(fPixelData.createChild(bounds.x, bounds.y, bounds.width, bounds.height, bounds.x, bounds.y, null), old_histogram, new long[4]);
+					for (int i = 0; i < 256; i++) fColorHistogram[i] -= old_histogram[i];
+					long[] colors = new long[4];
+					countColors(tile, fColorHistogram, colors);
+					fTileColors[ty][tx] = colors;
+				}
+				fPixelData.setRect(tile);
+				fTileHashes[ty][tx] = aImage.fTileHashes[ty][tx];
+				changed.add(bounds);
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * Get the number of pixels per color index.
+	 * The result is computed once, modifications via {@link #getRaster} after that are not reflected.
+	 * @return Array of 256 counts; null if not known without decoding the complete image.
+	 */
+	public long[] getColorHistogram()
+	{
+		if (fColorHistogram == null) countColors();
+		return fColorHistogram;
+	}
+
+	/**
+	 * Test whether parts of a region could not be decoded on their last access, and were returned blank.
+	 * They are decoded again on the next access.
+	 * @param aRegion Region of the image.
+	 * @return true if the region contains such parts.
+	 */
+	public boolean hasFailedTiles(Rectangle aRegion)
+	{
+		return false;
+	}
+
+	/**
+	 * Get the color indices used in a tile.
+	 * @param aTileX Tile column.
+	 * @param aTileY Tile row.
+	 * @return Set of 256 bits: bit (i & 63) of element (i >> 6) is set if color index i is used; null if unknown.
+	 */
+	public long[] getTileColors(int aTileX, int aTileY)
+	{
+		if (fTileColors == null) countColors();
+		return fTileColors[aTileY][aTileX];
+	}
+
+	/**
+	 * Test whether a tile may contain any of some color indices.
+	 * @param aTileX Tile column.
+	 * @param aTileY Tile row.
+	 * @param aColors Set of 256 bits, see {@link #getTileColors}.
+	 * @return false if the tile surely does not contain any of the colors.
+	 */
+	public boolean mayUseColors(int aTileX, int aTileY, long[] aColors)
+	{
+		long[] used = getTileColors(aTileX, aTileY);
+		if (used == null) return true;
+		for (int i = 0; i < 4; i++) {
+			if ((used[i] & aColors[i]) != 0) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Test whether the image may contain any of some color indices.
+	 * @param aColors Set of 256 bits, see {@link #getTileColors}.
+	 * @return false if the image surely does not contain any of the colors.
+	 */
+	public boolean mayUseColors(long[] aColors)
+	{
+		long[] histogram = getColorHistogram();
+		if (histogram == null) return true;
+		for (int i = 0; i < 256; i++) {
+			if (histogram[i] != 0 && (aColors[i >> 6] & (1L << i)) != 0) return true;
+		}
+		return false;
+	}
+
 	/**
 	 * Returns a WritableRaster of the image.
 	 */
@@ -173,6 +531,47 @@ public class TTDImage {
 		return new BufferedImage(aColorModel, sub_raster, false, null);
 	}
 
+	/**
+	 * Create an image for saving, optionally recolored and zoomed.
+	 * Recoloring and zooming are done in a single pass over the pixels.
+	 * @param aColorModel Color model of the result.
+	 * @param aRecoloring Recoloring to apply to the pixels; null for none. Use {@link Recoloring#compose} to apply several.
+	 * @param aZoom Zoom level; 1 for none.
+	 * @return Image using the color model. It may share the pixels with this image.
+	 */
+	public BufferedImage createOutputImage(IndexColorModel aColorModel, Recoloring aRecoloring, int aZoom)
+	{
+		WritableRaster pixel_data = getRaster();
+		int width = pixel_data.getWidth();
+		int height = pixel_data.getHeight();
+
+		if (aZoom > 1) {
+			WritableRaster zoomed = aColorModel.createCompatibleWritableRaster(width * aZoom, height * aZoom);
+			byte[] table = (aRecoloring != null ? aRecoloring : new Recoloring()).getLookupTable();
+			int[] row_in = new int[width];
+			byte[] row_out = new byte[width * aZoom];
+			for (int y = 0; y < height; y++) {
+				pixel_data.getSamples(0, y, width, 1, 0, row_in);
+				for (int x = 0; x < width; x++) {
+					byte color = table[row_in[x] & 0xFF];
+					for (int i = 0; i < aZoom; i++) {
+						row_out[x * aZoom + i] = color;
+					}
+				}
+				for (int i = 0; i < aZoom; i++) {
+					zoomed.setDataElements(0, y * aZoom + i, width * aZoom, 1, row_out);
+				}
+			}
+			pixel_data = zoomed;
+		} else if (aRecoloring != null) {
+			WritableRaster recolored = aColorModel.createCompatibleWritableRaster(width, height);
+			aRecoloring.applyTo(pixel_data, recolored);
+			pixel_data = recolored;
+		}
+
+		return new BufferedImage(aColorModel, pixel_data, false, null);
+	}
+
 	/**
 	 * Return a BufferedImage of a part of the image using the current palette and recolored.
 	 * If the selected rectangle extents the image dimension it is clipped at its border.
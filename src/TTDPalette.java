@@ -5,8 +5,13 @@
  * See the GNU General Public License for more details. You should have received a copy of the GNU General Public License along with TTDViewer. If not, see <http://www.gnu.org/licenses/>.
  */
 
+import java.nio.*;
+import java.util.*;
+import java.util.function.*;
+import java.util.stream.*;
 import java.awt.*;
 import java.awt.event.*;
+import java.awt.image.*;
 import javax.swing.*;
 
 /** Main class for dealing with TTD related palettised stuff. */
@@ -329,25 +334,83 @@ public class TTDPalette extends Palette {
 	 */
 	protected int fClimate = TEMPERATE;
 
-	/** Current palette animation counter. Incremented by 8 every 30 ms unless paused. */
+	/** Current palette animation counter. Follows the clock of {@link ApplicationControl} unless paused. */
 	protected int fAnimationCounter = 0;
 
-	/** Timer for palette animation */
-	protected Timer fAnimationTimer;
+	/**
+	 * Palettes of a complete animation cycle.
+	 * The animation counter is 16 bit and incremented by 8, so there are 8192 states, of which many are identical.
+	 */
+	protected static class FrameTable {
+		/** Index into {@link #palettes} per animation counter divided by 8. */
+		public final int[] frames = new int[0x10000 / 8];
+
+		/** Distinct palettes of the cycle. */
+		public final int[][] palettes;
+
+		/** Color models of {@link #palettes} without recoloring. */
+		public final IndexColorModel[] color_models;
+
+		/**
+		 * Compute all palettes of the cycle in parallel.
+		 * @param aPalette Palette providing the animations and their enabled state.
+		 * @param aToyland Toyland or not.
+		 */
+		public FrameTable(final TTDPalette aPalette, final boolean aToyland)
+		{
+			final int[][] all = new int[frames.length][];
+			IntStream.range(0, frames.length).parallel().forEach(new IntConsumer() {
+				@Override public void accept(int i)
+				{
+					all[i] = new int[256];
+					aPalette.fillPalette(all[i], i * 8, aToyland);
+				}
+			});
+
+			/* Merge identical palettes */
+			HashMap<IntBuffer, Integer> distinct = new HashMap<IntBuffer, Integer>();
+			ArrayList<int[]> palette_list = new ArrayList<int[]>();
+			for (int i = 0; i < frames.length; i++) {
+				IntBuffer key = IntBuffer.wrap(all[i]);
+				Integer index = distinct.get(key);
+				if (index == null) {
+					index = palette_list.size();
+					distinct.put(key, index);
+					palette_list.add(all[i]);
+				}
+				frames[i] = index;
+			}
+			palettes = palette_list.toArray(new int[palette_list.size()][]);
+
+			color_models = new IndexColorModel[palettes.length];
+			IntStream.range(0, palettes.length).parallel().forEach(new IntConsumer() {
+				@Override public void accept(int i)
+				{
+					color_models[i] = new IndexColorModel(8, 256, palettes[i], 0, true, -1, DataBuffer.TYPE_BYTE);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Frame tables shared by all palettes.
+	 * Key is the toyland flag in bit 0 and the enabled state of the animations in the following bits.
+	 */
+	private static final HashMap<Integer, FrameTable> fFrameTables = new HashMap<Integer, FrameTable>();
+
+	/** Use precomputed frame tables instead of rebuilding the palette on every animation tick. */
+	protected boolean fUseFrameTable = true;
+
+	/** Frame table {@link #fCurrentPalette} was taken from; null if it was computed directly. */
+	protected FrameTable fCurrentFrameTable = null;
+
+	/** Index of {@link #fCurrentPalette} in {@link #fCurrentFrameTable}. */
+	protected int fCurrentFrame = 0;
 
 	/** Setup palette, palette animation and global recoloring. */
 	public TTDPalette()
 	{
 		buildPalette();
-
-		ActionListener anim_trigger = new ActionListener() {
-			@Override public void actionPerformed(ActionEvent evt) {
-				fAnimationCounter = (fAnimationCounter + 8) & 0xFFFF;
-				buildPalette();
-			}
-		};
-
-		fAnimationTimer = new Timer(30, anim_trigger);
 	}
 
 	/**
@@ -369,48 +432,121 @@ public class TTDPalette extends Palette {
 		buildPalette();
 	}
 
-	/** Start palette animation */
+	/**
+	 * Start palette animation.
+	 * All animated palettes share the clock of {@link ApplicationControl}, so they stay in phase.
+	 */
 	public void startPaletteAnimation()
 	{
-		fAnimationTimer.start();
+		ApplicationControl.startAnimation(this);
 	}
 
 	/** Pause palette animation */
 	public void pausePaletteAnimation()
 	{
-		fAnimationTimer.stop();
+		ApplicationControl.stopAnimation(this);
 	}
 
 	/** Stop palette animation and reset the animation counter */
 	public void stopPaletteAnimation()
 	{
-		fAnimationTimer.stop();
-		fAnimationCounter = 0;
+		ApplicationControl.stopAnimation(this);
+		setAnimationCounter(0);
+	}
+
+	/** Get the current palette animation counter. */
+	public int getAnimationCounter()
+	{
+		return fAnimationCounter;
+	}
+
+	/**
+	 * Set the palette animation counter and rebuild the palette, if it changed.
+	 * @param aAnimationCounter TTD animation counter: 16 bit, incremented by 8 every 30 ms.
+	 */
+	public void setAnimationCounter(int aAnimationCounter)
+	{
+		aAnimationCounter &= 0xFFFF;
+		if (aAnimationCounter == fAnimationCounter) return;
+		fAnimationCounter = aAnimationCounter;
 		buildPalette();
 	}
 
-	/** Build {@link #fCurrentPalette} from scratch and apply palette animation. */
-	protected void buildPalette()
+	/**
+	 * Select whether palettes are looked up in precomputed frame tables.
+	 * The tables are computed once per climate and set of enabled animations, and shared between all palettes.
+	 * @param aUseFrameTable true to use frame tables, false to compute the palette on every animation tick.
+	 */
+	public void setUseFrameTable(boolean aUseFrameTable)
+	{
+		fUseFrameTable = aUseFrameTable;
+		buildPalette();
+	}
+
+	/** Get the frame table for the current climate and enabled animations; it is computed on first use. */
+	protected FrameTable getFrameTable()
+	{
+		boolean toyland = fClimate == TOYLAND;
+		int key = toyland ? 1 : 0;
+		for (int i = 0; i < palette_animations.length; i++) {
+			if (palette_animations[i].enabled) key |= 2 << i;
+		}
+		synchronized (fFrameTables) {
+			FrameTable table = fFrameTables.get(key);
+			if (table == null) {
+				table = new FrameTable(this, toyland);
+				fFrameTables.put(key, table);
+			}
+			return table;
+		}
+	}
+
+	/**
+	 * Compute a palette with applied palette animation.
+	 * @param aPalette Palette to fill
+	 * @param aAnimationCounter Animation counter
+	 * @param aToyland Toyland or not
+	 */
+	protected void fillPalette(int[] aPalette, int aAnimationCounter, boolean aToyland)
 	{
 		for (int i = 0; i < 256; i++) {
-			fCurrentPalette[i] = DOS_PALETTE[i] | (i != TRANSPARENT ? 0xFF000000 : 0x00000000);
+			aPalette[i] = DOS_PALETTE[i] | (i != TRANSPARENT ? 0xFF000000 : 0x00000000);
 		}
 		for (int i = 0; i < palette_animations.length; i++) {
-			palette_animations[i].applyPalette(fCurrentPalette, fAnimationCounter, fClimate == TOYLAND);
+			palette_animations[i].applyPalette(aPalette, aAnimationCounter, aToyland);
+		}
+	}
+
+	/** Build {@link #fCurrentPalette} and apply palette animation, either from scratch or from the frame table. */
+	protected void buildPalette()
+	{
+		fCurrentFrameTable = null;
+		if (fUseFrameTable && (fAnimationCounter & 7) == 0) {
+			fCurrentFrameTable = getFrameTable();
+			fCurrentFrame = fCurrentFrameTable.frames[fAnimationCounter >> 3];
+			System.arraycopy(fCurrentFrameTable.palettes[fCurrentFrame], 0, fCurrentPalette, 0, 256);
+		} else {
+			fillPalette(fCurrentPalette, fAnimationCounter, fClimate == TOYLAND);
 		}
+		paletteChanged();
 		fireChangeEvent();
 	}
 
+	/** Use the precomputed color model of the frame table, if there is no recoloring. */
+	@Override protected IndexColorModel buildColorModel(Recoloring aRecoloring, boolean aTransparentAsBlue)
+	{
+		if (fCurrentFrameTable != null && !aTransparentAsBlue && (aRecoloring == null || aRecoloring.isIdentity())) {
+			return fCurrentFrameTable.color_models[fCurrentFrame];
+		}
+		return super.buildColorModel(aRecoloring, aTransparentAsBlue);
+	}
+
 	/** Build the raw palette with fixed animation state */
 	public Palette getUnanimatedPalette()
 	{
 		Palette pal = new Palette();
-		for (int i = 0; i < 256; i++) {
-			pal.fCurrentPalette[i] = DOS_PALETTE[i] | (i != TRANSPARENT ? 0xFF000000 : 0x00000000);
-		}
-		for (int i = 0; i < palette_animations.length; i++) {
-			palette_animations[i].applyPalette(pal.fCurrentPalette, 0, fClimate == TOYLAND);
-		}
+		fillPalette(pal.fCurrentPalette, 0, fClimate == TOYLAND);
+		pal.paletteChanged();
 		return pal;
 	}
 };
@@ -6,6 +6,8 @@
  */
 
 import java.io.*;
+import java.util.Arrays;
+import java.util.concurrent.*;
 import java.awt.*;
 import java.awt.event.*;
 import javax.swing.*;
@@ -29,30 +31,96 @@ public class TTDViewer extends JFrame {
 
 	public static void main(String[] Args)
 	{
-		if (Args.length == 0) {
+		applyTileProperties();
+		if (Args.length > 0 && Args[0].equals("--batch")) {
+			BatchConverter.main(Arrays.copyOfRange(Args, 1, Args.length));
+		} else if (Args.length == 0) {
 			new TTDViewer();
 		} else {
 			/* Open first window in some default location, position the
 			 * rest relative to the position of the first window. */
 			Point location = null;
 			for (int i = 0; i < Args.length; i++) {
-				TTDViewer viewer = new TTDViewer(new File(Args[i]), location);
-				if (location == null) location = viewer.getLocation();
+				File file = new File(Args[i]);
+				JFrame window = file.isDirectory() ? new ThumbnailBrowser(file, location) : new TTDViewer(file, location);
+				if (location == null) location = window.getLocation();
 				if (i < 10) location.translate(20, 30);
 			}
 		}
 	}
 
+	/**
+	 * Apply the memory settings for lazily decoded images, given as system properties:
+	 * 'ttdviewer.tileMemory' limits the memory of the resident tiles, e.g. 512m or 2g;
+	 * 'ttdviewer.spill=false' decodes evicted tiles again, instead of writing them to a temporary file.
+	 */
+	protected static void applyTileProperties()
+	{
+		String memory = System.getProperty("ttdviewer.tileMemory");
+		if (memory != null) {
+			try {
+				TiledTTDImage.setMemoryLimit(parseBytes(memory));
+			} catch (NumberFormatException e) {
+				System.out.println("Invalid ttdviewer.tileMemory, using the default: " + memory);
+			}
+		}
+		String spill = System.getProperty("ttdviewer.spill");
+		if (spill != null) TiledTTDImage.setSpillToDisk(Boolean.parseBoolean(spill));
+	}
+
+	/**
+	 * Parse a positive number of bytes.
+	 * @param aValue Number with an optional suffix k, m or g.
+	 * @return Number of bytes.
+	 * @throws NumberFormatException if the value is invalid.
+	 */
+	protected static long parseBytes(String aValue)
+	{
+		String value = aValue.trim().toLowerCase();
+		long unit = 1;
+		if (value.endsWith("k")) {
+			unit = 1L << 10;
+		} else if (value.endsWith("m")) {
+			unit = 1L << 20;
+		} else if (value.endsWith("g")) {
+			unit = 1L << 30;
+		}
+		if (unit != 1) value = value.substring(0, value.length() - 1);
+		long bytes = Long.parseLong(value);
+		if (bytes <= 0 || bytes > Long.MAX_VALUE / unit) throw new NumberFormatException("Invalid size: " + aValue);
+		return bytes * unit;
+	}
+
 	public TTDPalette fPalette = new TTDPalette();
 
 	protected TTDDisplay fImage;
 	protected RecolorBrowser fRecolorBrowser;
 	protected PalettePicker fMainPalette;
 
-	/** Reloads the image if it is changed on disk. */
+	/** Decodes reloaded images in the background; shared by all windows. */
+	protected static ExecutorService fReloadExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+		@Override public Thread newThread(Runnable r)
+		{
+			Thread thread = new Thread(r, "Image reloader");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	/**
+	 * Reloads the image if it is changed on disk.
+	 * The image is decoded on {@link #fReloadExecutor}, and replaces the shown one when done.
+	 * A newer change cancels a reload in progress.
+	 */
 	protected class AutoReloader implements ChangeListener {
 		File fFile = null;
 
+		/** Reload in progress; null if none. */
+		Future<?> fPending = null;
+
+		/** Incremented on each change; only the result of the latest reload is shown. */
+		int fGeneration = 0;
+
 		/** Return currently monitored file. */
 		public File getFile()
 		{
@@ -62,18 +130,87 @@ public class TTDViewer extends JFrame {
 		/** Switch the file to monitor. */
 		public void changeFile(File aFile)
 		{
+			cancel();
 			FileMonitor.removeChangeListener(this);
 			fFile = aFile;
-			FileMonitor.addChangeListener(fFile, this);
+			if (fFile != null) FileMonitor.addChangeListener(fFile, this);
+		}
+
+		/**
+		 * Compute the tile hashes of a newly loaded image in the background.
+		 * The first reload compares with them, and would compute them on the event dispatch thread otherwise.
+		 * @param aImage Image, which is shown.
+		 */
+		public void hashTiles(final TTDImage aImage)
+		{
+			fReloadExecutor.submit(new Runnable() {
+				@Override public void run()
+				{
+					final long[][] hashes = aImage.hashTiles();
+					SwingUtilities.invokeLater(new Runnable() {
+						@Override public void run()
+						{
+							aImage.initTileHashes(hashes);
+						}
+					});
+				}
+			});
+		}
+
+		/** Cancel a reload in progress. */
+		public void cancel()
+		{
+			fGeneration++;
+			if (fPending != null) fPending.cancel(true);
+			fPending = null;
 		}
 
 		@Override public void stateChanged(ChangeEvent e)
 		{
-			/* Try to reload the file.
-			 * Do nothing if the file is invalid or got removed, but wait until it is valid again. */
-			try {
-				fImage.loadFrom(fFile);
-			} catch (Exception error) {};
+			cancel();
+			final int generation = fGeneration;
+			final File file = fFile;
+			fStatus.setText("reloading...");
+			fPending = fReloadExecutor.submit(new Runnable() {
+				@Override public void run()
+				{
+					long start = System.nanoTime();
+					TTDImage image = null;
+					String error = null;
+					try {
+						image = TTDImage.createFrom(fPalette, file);
+						/* Prepare comparing with the shown image, while still in the background; unless a newer change cancelled the reload */
+						if (!Thread.currentThread().isInterrupted()) image.computeTileHashes();
+					} catch (Exception ex) {
+						error = (ex.getMessage() != null) ? ex.getMessage() : ex.toString();
+					}
+					final TTDImage result = image;
+					final long millis = (System.nanoTime() - start) / 1000000;
+					final String error_message = "reload failed: " + error;
+					SwingUtilities.invokeLater(new Runnable() {
+						@Override public void run()
+						{
+							if (generation != fGeneration) {
+								/* A newer change or file superseded this one */
+								if (result != null) result.flush();
+								return;
+							}
+							fPending = null;
+							/* Keep the old image if the file is invalid or got removed, and wait until it is valid again. */
+							if (result == null) {
+								fStatus.setText(error_message);
+								return;
+							}
+							int changed = fImage.reloadImage(result, fHighlightChanges.isSelected());
+							if (changed < 0) {
+								fStatus.setText(String.format("reloaded in %d ms", millis));
+							} else {
+								fStatus.setText(String.format("reloaded in %d ms, %d tiles changed", millis, changed));
+							}
+						}
+					});
+				}
+			});
 		}
 	};
 
@@ -86,6 +223,7 @@ public class TTDViewer extends JFrame {
 	private JRadioButtonMenuItem fToyland;
 
 	static private JFileChooser fFileChooser = new JFileChooser();
+	static private JFileChooser fFolderChooser = new JFileChooser();
 	static FileFilter fPNGPCXFilter = new FileNameExtensionFilter("PNG and PCX images", "png", "pcx");
 	static FileFilter fPNGFilter = new FileNameExtensionFilter("PNG images", "png");
 	static FileFilter fPCXFilter = new FileNameExtensionFilter("PCX images", "pcx");
@@ -105,6 +243,8 @@ public class TTDViewer extends JFrame {
 	static private JCheckBox fFileSaveRecolor = new JCheckBox("save recolored", true);
 	static private JCheckBox fFileSaveZoom = new JCheckBox("save zoomed", false);
 	static private JCheckBox fFileSaveAnimState = new JCheckBox("use current animation state", false);
+	static private JComboBox<Integer> fFileSavePNGLevel = new JComboBox<Integer>(new Integer[] {0, 1, 2, 3, 4, 5, 6, 7, 8, 9});
+	static private JComboBox<String> fFileSavePNGFilter = new JComboBox<String>(PNG.FILTER_NAMES);
 
 	static {
 		fFileChooser.setCurrentDirectory(new File("."));
@@ -113,6 +253,9 @@ public class TTDViewer extends JFrame {
 		fFileChooser.addChoosableFileFilter(fPCXFilter);
 		fFileChooser.setFileFilter(fPNGPCXFilter);
 
+		fFolderChooser.setCurrentDirectory(new File("."));
+		fFolderChooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+
 		JPanel saveAsOptions = new JPanel();
 		saveAsOptions.setLayout(new BoxLayout(saveAsOptions, BoxLayout.Y_AXIS));
 		saveAsOptions.add(fFileSaveTransparentAsBlue);
@@ -120,17 +263,30 @@ public class TTDViewer extends JFrame {
 		saveAsOptions.add(fFileSaveZoom);
 		saveAsOptions.add(fFileSaveAnimState);
 
+		fFileSavePNGLevel.setSelectedItem(6);
+		fFileSavePNGFilter.setSelectedIndex(new PNG.Options().filter);
+		JPanel png_options = new JPanel(new GridLayout(2, 2));
+		png_options.add(new JLabel("png level"));
+		png_options.add(fFileSavePNGLevel);
+		png_options.add(new JLabel("png filter"));
+		png_options.add(fFileSavePNGFilter);
+		png_options.setAlignmentX(Component.LEFT_ALIGNMENT);
+		png_options.setMaximumSize(png_options.getPreferredSize());
+		saveAsOptions.add(png_options);
+
 		fFileSaveChooser.setCurrentDirectory(new File("."));
 		fFileSaveChooser.setAccessory(saveAsOptions);
 		fFileSaveChooser.addChoosableFileFilter(fPNGFilter);
+		fFileSaveChooser.addChoosableFileFilter(fPCXFilter);
 		fFileSaveChooser.setAcceptAllFileFilterUsed(false);
 		fFileSaveChooser.setFileFilter(fPNGFilter);
-		/* TODO saving of PCX images */
 	}
 
 	private JButton fSaveAsButton;
 	private JLabel fZoomLevel;
 	private JLabel fFileName;
+	private JLabel fStatus;
+	private JCheckBox fHighlightChanges;
 
 	/** Transfer settings from buttons to the backend */
 	protected void rebuildMainPalette()
@@ -169,8 +325,12 @@ public class TTDViewer extends JFrame {
 	public void changeFile(File aFile)
 	{
 		try {
+			fAutoReloader.cancel();
+			long start = System.nanoTime();
 			fImage.loadFrom(aFile);
+			fStatus.setText(String.format("loaded in %d ms", (System.nanoTime() - start) / 1000000));
 			fAutoReloader.changeFile(aFile);
+			fAutoReloader.hashTiles(fImage.getImage());
 			fFileName.setText(aFile.getName());
 			fSaveAsButton.setEnabled(true);
 		} catch (Exception error) {
@@ -203,7 +363,7 @@ public class TTDViewer extends JFrame {
 	{
 		super("TTDViewer [" + fVersion + "]");
 		setDefaultCloseOperation(DISPOSE_ON_CLOSE);
-		ApplicationControl.addWindow(this);
+		ApplicationControl.addWindow(this, fPalette);
 
 		if (aLocation != null) setLocation(aLocation);
 
@@ -301,6 +461,9 @@ public class TTDViewer extends JFrame {
 		tool_panel.add(top_panel, BorderLayout.NORTH);
 
 		fFileName = new JLabel("");
+		fStatus = new JLabel("");
+		fHighlightChanges = new JCheckBox("highlight changes", true);
+		fHighlightChanges.setToolTipText("Highlight the parts of the image, which changed when it is reloaded");
 		/* TODO Preview? */
 
 		JButton load_button = new JButton("open file");
@@ -323,6 +486,18 @@ public class TTDViewer extends JFrame {
 			}
 		});
 
+		JButton browse_button = new JButton("browse folder");
+		browse_button.addActionListener(new ActionListener() {
+			@Override public void actionPerformed(ActionEvent e)
+			{
+				if (fFolderChooser.showOpenDialog(TTDViewer.this) == JFileChooser.APPROVE_OPTION) {
+					Point location = getLocation();
+					location.translate(20, 30);
+					new ThumbnailBrowser(fFolderChooser.getSelectedFile(), location);
+				}
+			}
+		});
+
 		fSaveAsButton = new JButton("save as");
 		fSaveAsButton.setEnabled(false);
 		fSaveAsButton.addActionListener(new ActionListener() {
@@ -331,7 +506,9 @@ public class TTDViewer extends JFrame {
 				int returnVal = fFileSaveChooser.showSaveDialog(TTDViewer.this);
 				if (returnVal == JFileChooser.APPROVE_OPTION) {
 					try {
-						fImage.saveTo(fFileSaveChooser.getSelectedFile(), "png", fFileSaveTransparentAsBlue.isSelected(), fFileSaveRecolor.isSelected(), fFileSaveZoom.isSelected(), fFileSaveAnimState.isSelected());
+						String format = (fFileSaveChooser.getFileFilter() == fPCXFilter) ? "pcx" : "png";
+						PNG.Options png_options = new PNG.Options((Integer)fFileSavePNGLevel.getSelectedItem(), fFileSavePNGFilter.getSelectedIndex(), Runtime.getRuntime().availableProcessors());
+						fImage.saveTo(fFileSaveChooser.getSelectedFile(), format, fFileSaveTransparentAsBlue.isSelected(), fFileSaveRecolor.isSelected(), fFileSaveZoom.isSelected(), fFileSaveAnimState.isSelected(), png_options);
 					} catch (Exception error) {
 						JOptionPane.showMessageDialog(TTDViewer.this, error.getMessage(), "Saving image failed", JOptionPane.ERROR_MESSAGE);
 					}
@@ -363,8 +540,12 @@ public class TTDViewer extends JFrame {
 		JPanel menu_panel = new JPanel();
 		menu_panel.setLayout(new BoxLayout(menu_panel, BoxLayout.X_AXIS));
 		menu_panel.add(load_button);
+		menu_panel.add(browse_button);
 		menu_panel.add(fSaveAsButton);
 		menu_panel.add(fFileName);
+		menu_panel.add(Box.createHorizontalStrut(10));
+		menu_panel.add(fStatus);
+		menu_panel.add(fHighlightChanges);
 		menu_panel.add(Box.createHorizontalGlue());
 		menu_panel.add(fZoomLevel);
 		menu_panel.add(zoom_in_button);
@@ -387,4 +568,11 @@ public class TTDViewer extends JFrame {
 
 		setVisible(true);
 	}
+
+	/** Stop monitoring the file when the window is closed. */
+	@Override public void dispose()
+	{
+		fAutoReloader.changeFile(null);
+		super.dispose();
+	}
 }
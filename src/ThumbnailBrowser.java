@@ -0,0 +1,183 @@
+/*
+ * This file is part of TTDViewer.
+ * TTDViewer is free software; you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, version 2.
+ * TTDViewer is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details. You should have received a copy of the GNU General Public License along with TTDViewer. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.*;
+import java.awt.*;
+import java.awt.event.*;
+import java.awt.image.*;
+import javax.swing.*;
+import javax.swing.event.*;
+
+/**
+ * Window showing thumbnails of all images in a directory tree.
+ * Double-clicking a thumbnail opens the image in a new viewer window.
+ */
+@SuppressWarnings("serial")
+public class ThumbnailBrowser extends JFrame {
+	/** Palette for the thumbnails; animated like the viewer windows. */
+	protected TTDPalette fPalette = new TTDPalette();
+
+	/** Index creating the thumbnails. */
+	protected ThumbnailIndex fIndex;
+
+	/** Thumbnails, sorted by path. */
+	protected DefaultListModel<ThumbnailIndex.Thumbnail> fThumbnails = new DefaultListModel<ThumbnailIndex.Thumbnail>();
+
+	/** List displaying {@link #fThumbnails}. */
+	protected JList<ThumbnailIndex.Thumbnail> fList = new JList<ThumbnailIndex.Thumbnail>(fThumbnails);
+
+	/** Shows the progress of the scan. */
+	protected JLabel fStatus = new JLabel(" ");
+
+	/** Draws a thumbnail with the file name below. */
+	@SuppressWarnings("serial")
+	protected class ThumbnailRenderer extends JComponent implements ListCellRenderer<ThumbnailIndex.Thumbnail> {
+		private ThumbnailIndex.Thumbnail fThumbnail;
+		private boolean fSelected;
+
+		@Override public Component getListCellRendererComponent(JList<? extends ThumbnailIndex.Thumbnail> list, ThumbnailIndex.Thumbnail value, int index, boolean isSelected, boolean cellHasFocus)
+		{
+			fThumbnail = value;
+			fSelected = isSelected;
+			setToolTipText(value.error != null ? value.file.getPath() + ": " + value.error : value.file.getPath());
+			return this;
+		}
+
+		@Override public Dimension getPreferredSize()
+		{
+			return new Dimension(ThumbnailIndex.THUMBNAIL_SIZE + 8, ThumbnailIndex.THUMBNAIL_SIZE + 24);
+		}
+
+		@Override protected void paintComponent(Graphics g)
+		{
+			g.setColor(fSelected ? fList.getSelectionBackground() : fList.getBackground());
+			g.fillRect(0, 0, getWidth(), getHeight());
+
+			WritableRaster raster = fThumbnail.createRaster();
+			if (raster != null) {
+				BufferedImage image = new BufferedImage(fPalette.getColorModel(false), raster, false, null);
+				g.drawImage(image, (getWidth() - fThumbnail.width) / 2, 4 + (ThumbnailIndex.THUMBNAIL_SIZE - fThumbnail.height) / 2, null);
+			} else {
+				g.setColor(Color.RED);
+				g.drawLine(4, 4, ThumbnailIndex.THUMBNAIL_SIZE + 4, ThumbnailIndex.THUMBNAIL_SIZE + 4);
+				g.drawLine(4, ThumbnailIndex.THUMBNAIL_SIZE + 4, ThumbnailIndex.THUMBNAIL_SIZE + 4, 4);
+			}
+
+			g.setColor(fSelected ? fList.getSelectionForeground() : fList.getForeground());
+			String name = fThumbnail.file.getName();
+			FontMetrics metrics = g.getFontMetrics();
+			while (name.length() > 1 && metrics.stringWidth(name) > getWidth() - 4) name = name.substring(0, name.length() - 1);
+			g.drawString(name, (getWidth() - metrics.stringWidth(name)) / 2, getHeight() - 6);
+		}
+	}
+
+	/** Insert a thumbnail keeping {@link #fThumbnails} sorted by path. */
+	protected void addThumbnail(ThumbnailIndex.Thumbnail aThumbnail)
+	{
+		String path = aThumbnail.file.getPath();
+		int low = 0;
+		int high = fThumbnails.size();
+		while (low < high) {
+			int mid = (low + high) / 2;
+			if (fThumbnails.get(mid).file.getPath().compareTo(path) < 0) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		fThumbnails.add(low, aThumbnail);
+	}
+
+	/**
+	 * Open a window and start scanning a directory.
+	 * @param aDirectory Directory to scan recursively.
+	 * @param aLocation Position the window at a specific spot, may be null for default position.
+	 */
+	public ThumbnailBrowser(File aDirectory, Point aLocation)
+	{
+		super("TTDViewer - " + aDirectory.getPath());
+		setDefaultCloseOperation(DISPOSE_ON_CLOSE);
+		ApplicationControl.addWindow(this, fPalette);
+		if (aLocation != null) setLocation(aLocation);
+
+		fList.setLayoutOrientation(JList.HORIZONTAL_WRAP);
+		fList.setVisibleRowCount(-1);
+		fList.setCellRenderer(new ThumbnailRenderer());
+		fList.addMouseListener(new MouseAdapter() {
+			@Override public void mouseClicked(MouseEvent e)
+			{
+				if (e.getClickCount() != 2) return;
+				int index = fList.locationToIndex(e.getPoint());
+				if (index < 0) return;
+				Point location = getLocation();
+				location.translate(20, 30);
+				new TTDViewer(fThumbnails.get(index).file, location);
+			}
+		});
+		fPalette.addChangeListener(new ChangeListener() {
+			@Override public void stateChanged(ChangeEvent e)
+			{
+				fList.repaint();
+			}
+		});
+
+		getContentPane().setLayout(new BorderLayout());
+		getContentPane().add(new JScrollPane(fList, ScrollPaneConstants.VERTICAL_SCROLLBAR_ALWAYS, ScrollPaneConstants.HORIZONTAL_SCROLLBAR_NEVER), BorderLayout.CENTER);
+		getContentPane().add(fStatus, BorderLayout.SOUTH);
+
+		setSize(800, 600);
+		fPalette.startPaletteAnimation();
+		setVisible(true);
+
+		startScan(aDirectory);
+	}
+
+	/** Scan the directory in a background thread, adding the thumbnails while they get ready. */
+	protected void startScan(File aDirectory)
+	{
+		fIndex = new ThumbnailIndex(aDirectory, new TTDPalette());
+		final long start = System.nanoTime();
+		fStatus.setText("Scanning " + aDirectory.getPath() + " ...");
+
+		Thread scanner = new Thread("Thumbnail scanner") {
+			@Override public void run()
+			{
+				try {
+					fIndex.scan(Runtime.getRuntime().availableProcessors(), new ThumbnailIndex.Listener() {
+						@Override public void thumbnailReady(final ThumbnailIndex.Thumbnail aThumbnail)
+						{
+							SwingUtilities.invokeLater(new Runnable() {
+								@Override public void run()
+								{
+									addThumbnail(aThumbnail);
+								}
+							});
+						}
+					});
+				} catch (InterruptedException e) {
+					return;
+				}
+				final double seconds = (System.nanoTime() - start) / 1e9;
+				SwingUtilities.invokeLater(new Runnable() {
+					@Override public void run()
+					{
+						fStatus.setText(String.format("%d images, %d from cache, %.1f s", fThumbnails.size(), fIndex.getCachedCount(), seconds));
+					}
+				});
+			}
+		};
+		scanner.setDaemon(true);
+		scanner.start();
+	}
+
+	/** Stop scanning when the window is closed. */
+	@Override public void dispose()
+	{
+		if (fIndex != null) fIndex.cancel();
+		super.dispose();
+	}
+}
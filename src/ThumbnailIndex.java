@@ -0,0 +1,393 @@
+/*
+ * This file is part of TTDViewer.
+ * TTDViewer is free software; you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, version 2.
+ * TTDViewer is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details. You should have received a copy of the GNU General Public License along with TTDViewer. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.zip.*;
+import java.awt.*;
+import java.awt.image.*;
+
+/**
+ * Scans a directory tree for images and creates palette-indexed thumbnails of them.
+ * Directories are listed and images are decoded in parallel on a bounded number of threads.
+ * Thumbnails are kept in a cache on disk, keyed by path, size and modification time of the file,
+ * so only new or modified files are decoded when scanning a directory again.
+ */
+public class ThumbnailIndex {
+	/** Maximum width and height of thumbnails. */
+	public static final int THUMBNAIL_SIZE = 96;
+
+	/** Version of the cache file format. */
+	private static final int CACHE_VERSION = 1;
+
+	/** Thumbnail of a single file. */
+	public static class Thumbnail {
+		/** The image file. */
+		public final File file;
+
+		/** Size of the file when the thumbnail was created. */
+		public final long size;
+
+		/** Modification time of the file when the thumbnail was created. */
+		public final long modified;
+
+		/** Thumbnail dimension. */
+		public final int width;
+		public final int height;
+
+		/** Color indices of the thumbnail in DOS palette; null if the file could not be loaded. */
+		public final byte[] pixels;
+
+		/** Reason why the file could not be loaded; null if it was loaded. */
+		public final String error;
+
+		public Thumbnail(File aFile, long aSize, long aModified, int aWidth, int aHeight, byte[] aPixels, String aError)
+		{
+			file = aFile;
+			size = aSize;
+			modified = aModified;
+			width = aWidth;
+			height = aHeight;
+			pixels = aPixels;
+			error = aError;
+		}
+
+		/** Test whether the thumbnail still matches the file. */
+		public boolean isUpToDate(long aSize, long aModified)
+		{
+			return size == aSize && modified == aModified;
+		}
+
+		/**
+		 * Create a raster of the thumbnail, to be used with the color models of a palette.
+		 * @return the raster; null if the file could not be loaded.
+		 */
+		public WritableRaster createRaster()
+		{
+			if (pixels == null) return null;
+			return Raster.createInterleavedRaster(new DataBufferByte(pixels, pixels.length), width, height, width, 1, new int[] {0}, null);
+		}
+	}
+
+	/** Receives the thumbnails while scanning. */
+	public interface Listener {
+		/**
+		 * Called from the worker threads for every thumbnail, whether taken from the cache or decoded.
+		 * @param aThumbnail The thumbnail.
+		 */
+		void thumbnailReady(Thumbnail aThumbnail);
+	}
+
+	/** File containing the cache. */
+	private static File fCacheFile = new File(new File(System.getProperty("user.home"), ".ttdviewer"), "thumbnails.cache");
+
+	/** Cached thumbnails of all scanned directories by absolute path; null if not loaded yet. Also serves as lock for the cache file. */
+	private static HashMap<String, Thumbnail> fCache = null;
+
+	/** Directory to scan. */
+	protected final File fDirectory;
+
+	/** Palette for DOS/WIN detection. */
+	protected final TTDPalette fPalette;
+
+	/** Workers listing directories and decoding images; null if not scanning. */
+	protected ExecutorService fExecutor = null;
+
+	/** Number of submitted, but not yet finished, tasks. */
+	protected final AtomicInteger fPending = new AtomicInteger();
+
+	/** Thumbnails of the scan. */
+	protected final Vector<Thumbnail> fThumbnails = new Vector<Thumbnail>();
+
+	/** Number of thumbnails taken from the cache. */
+	protected final AtomicInteger fCachedCount = new AtomicInteger();
+
+	/** Set when the scan is cancelled. */
+	protected volatile boolean fCancelled = false;
+
+	/**
+	 * Create an index of a directory.
+	 * @param aDirectory Directory to scan recursively.
+	 * @param aPalette Palette for DOS/WIN detection.
+	 * @see #scan
+	 */
+	public ThumbnailIndex(File aDirectory, TTDPalette aPalette)
+	{
+		fDirectory = aDirectory;
+		fPalette = aPalette;
+	}
+
+	/** Select the file to keep the cache in, e.g. to share it between users. */
+	public static void setCacheFile(File aFile)
+	{
+		synchronized (ThumbnailIndex.class) {
+			fCacheFile = aFile;
+			fCache = null;
+		}
+	}
+
+	/** Get the cache, loading it from disk on first use. A missing or invalid cache file results in an empty cache. */
+	protected static HashMap<String, Thumbnail> getCache()
+	{
+		synchronized (ThumbnailIndex.class) {
+			if (fCache != null) return fCache;
+			fCache = new HashMap<String, Thumbnail>();
+			if (!fCacheFile.isFile()) return fCache;
+			try {
+				DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(fCacheFile))));
+				try {
+					if (in.readInt() != CACHE_VERSION) return fCache;
+					int count = in.readInt();
+					for (int i = 0; i < count; i++) {
+						String path = in.readUTF();
+						long size = in.readLong();
+						long modified = in.readLong();
+						int width = in.readUnsignedShort();
+						int height = in.readUnsignedShort();
+						byte[] pixels = null;
+						String error = null;
+						if (in.readBoolean()) {
+							pixels = new byte[width * height];
+							in.readFully(pixels);
+						} else {
+							error = in.readUTF();
+						}
+						fCache.put(path, new Thumbnail(new File(path), size, modified, width, height, pixels, error));
+					}
+				} finally {
+					in.close();
+				}
+			} catch (IOException e) {
+				System.out.println("Reading thumbnail cache failed: " + e.getMessage());
+				fCache.clear();
+			}
+			return fCache;
+		}
+	}
+
+	/** Write the cache to disk. The file is replaced atomically, so a crash does not leave a broken cache. */
+	protected static void saveCache()
+	{
+		synchronized (ThumbnailIndex.class) {
+			if (fCache == null) return;
+			try {
+				File dir = fCacheFile.getAbsoluteFile().getParentFile();
+				dir.mkdirs();
+				File temp = File.createTempFile("thumbnails", ".tmp", dir);
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(temp))));
+				try {
+					out.writeInt(CACHE_VERSION);
+					out.writeInt(fCache.size());
+					for (Map.Entry<String, Thumbnail> entry : fCache.entrySet()) {
+						Thumbnail thumbnail = entry.getValue();
+						out.writeUTF(entry.getKey());
+						out.writeLong(thumbnail.size);
+						out.writeLong(thumbnail.modified);
+						out.writeShort(thumbnail.width);
+						out.writeShort(thumbnail.height);
+						out.writeBoolean(thumbnail.pixels != null);
+						if (thumbnail.pixels != null) {
+							out.write(thumbnail.pixels);
+						} else {
+							out.writeUTF(thumbnail.error);
+						}
+					}
+				} finally {
+					out.close();
+				}
+				if (!temp.renameTo(fCacheFile)) {
+					fCacheFile.delete();
+					if (!temp.renameTo(fCacheFile)) throw new IOException("Cannot replace " + fCacheFile);
+				}
+			} catch (IOException e) {
+				System.out.println("Writing thumbnail cache failed: " + e.getMessage());
+			}
+		}
+	}
+
+	/** Test whether a file name looks like an image. */
+	protected static boolean isImageFile(File aFile)
+	{
+		String name = aFile.getName().toLowerCase();
+		return name.endsWith(".png") || name.endsWith(".pcx");
+	}
+
+	/**
+	 * Create a thumbnail by decoding an image.
+	 * The image is scaled down by an integer factor using nearest neighbour, so the thumbnail keeps the color indices.
+	 * Only the sampled rows are requested from the image, so a lazily decoded image is never copied as a whole.
+	 */
+	protected Thumbnail createThumbnail(File aFile, long aSize, long aModified)
+	{
+		TTDImage image;
+		try {
+			image = TTDImage.createFrom(fPalette, aFile);
+		} catch (Exception e) {
+			return new Thumbnail(aFile, aSize, aModified, 0, 0, null, e.getMessage() != null ? e.getMessage() : e.toString());
+		}
+		try {
+			Dimension size = image.getSize();
+			int scale = (Math.max(size.width, size.height) + THUMBNAIL_SIZE - 1) / THUMBNAIL_SIZE;
+			if (scale < 1) scale = 1;
+			int width = (size.width + scale - 1) / scale;
+			int height = (size.height + scale - 1) / scale;
+			IndexColorModel color_model = fPalette.getUnanimatedPalette().getColorModel(false);
+			byte[] pixels = new byte[width * height];
+			int[] row = new int[size.width];
+			for (int y = 0; y < height; y++) {
+				Raster raster = image.getImage(color_model, new Rectangle(0, y * scale, size.width, 1)).getRaster();
+				raster.getSamples(raster.getMinX(), raster.getMinY(), row.length, 1, 0, row);
+				for (int x = 0; x < width; x++) {
+					pixels[y * width + x] = (byte)row[x * scale];
+				}
+			}
+			return new Thumbnail(aFile, aSize, aModified, width, height, pixels, null);
+		} finally {
+			image.flush();
+		}
+	}
+
+	/** Submit a task; it is counted in {@link #fPending} until it finished. */
+	private void submit(final Runnable aTask)
+	{
+		fPending.incrementAndGet();
+		try {
+			fExecutor.execute(new Runnable() {
+				@Override public void run()
+				{
+					try {
+						if (!fCancelled) aTask.run();
+					} finally {
+						if (fPending.decrementAndGet() == 0) {
+							synchronized (fPending) {
+								fPending.notifyAll();
+							}
+						}
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			fPending.decrementAndGet();
+		}
+	}
+
+	/** List a directory, and submit tasks for its subdirectories and images. */
+	private void scanDirectory(File aDirectory, final Listener aListener)
+	{
+		File[] files = aDirectory.listFiles();
+		if (files == null) return;
+		for (int i = 0; i < files.length; i++) {
+			final File file = files[i];
+			if (file.isDirectory()) {
+				submit(new Runnable() {
+					@Override public void run()
+					{
+						scanDirectory(file, aListener);
+					}
+				});
+			} else if (isImageFile(file)) {
+				submit(new Runnable() {
+					@Override public void run()
+					{
+						scanFile(file, aListener);
+					}
+				});
+			}
+		}
+	}
+
+	/** Get a thumbnail from the cache, or decode the image if it is not cached or modified. */
+	private void scanFile(File aFile, Listener aListener)
+	{
+		long size = aFile.length();
+		long modified = aFile.lastModified();
+		String key = aFile.getAbsolutePath();
+
+		Thumbnail thumbnail;
+		HashMap<String, Thumbnail> cache = getCache();
+		synchronized (ThumbnailIndex.class) {
+			thumbnail = cache.get(key);
+		}
+		if (thumbnail != null && thumbnail.isUpToDate(size, modified)) {
+			thumbnail = new Thumbnail(aFile, thumbnail.size, thumbnail.modified, thumbnail.width, thumbnail.height, thumbnail.pixels, thumbnail.error);
+			fCachedCount.incrementAndGet();
+		} else {
+			thumbnail = createThumbnail(aFile, size, modified);
+			synchronized (ThumbnailIndex.class) {
+				cache.put(key, thumbnail);
+			}
+		}
+		fThumbnails.add(thumbnail);
+		if (aListener != null) aListener.thumbnailReady(thumbnail);
+	}
+
+	/**
+	 * Scan the directory tree and create the thumbnails.
+	 * Blocks until all files are processed or the scan is cancelled; then the cache is written to disk.
+	 * @param aThreads Number of threads.
+	 * @param aListener Listener to receive the thumbnails while scanning; may be null.
+	 * @return Thumbnails of all images, sorted by path.
+	 */
+	public java.util.List<Thumbnail> scan(int aThreads, final Listener aListener) throws InterruptedException
+	{
+		fThumbnails.clear();
+		fCachedCount.set(0);
+		fExecutor = Executors.newFixedThreadPool(aThreads);
+		try {
+			submit(new Runnable() {
+				@Override public void run()
+				{
+					scanDirectory(fDirectory, aListener);
+				}
+			});
+			synchronized (fPending) {
+				while (fPending.get() > 0) fPending.wait();
+			}
+		} finally {
+			fExecutor.shutdownNow();
+			fExecutor = null;
+		}
+
+		/* Forget files below the directory which were removed */
+		if (!fCancelled) {
+			String prefix = fDirectory.getAbsolutePath() + File.separator;
+			HashSet<String> existing = new HashSet<String>();
+			for (Thumbnail thumbnail : fThumbnails) existing.add(thumbnail.file.getAbsolutePath());
+			synchronized (ThumbnailIndex.class) {
+				Iterator<String> it = getCache().keySet().iterator();
+				while (it.hasNext()) {
+					String path = it.next();
+					if (path.startsWith(prefix) && !existing.contains(path)) it.remove();
+				}
+			}
+		}
+		saveCache();
+
+		ArrayList<Thumbnail> result = new ArrayList<Thumbnail>(fThumbnails);
+		Collections.sort(result, new Comparator<Thumbnail>() {
+			@Override public int compare(Thumbnail a, Thumbnail b)
+			{
+				return a.file.getPath().compareTo(b.file.getPath());
+			}
+		});
+		return result;
+	}
+
+	/** Stop scanning. Files which are being decoded are finished, the others are skipped. */
+	public void cancel()
+	{
+		fCancelled = true;
+	}
+
+	/** Number of thumbnails of the last scan, which were taken from the cache. */
+	public int getCachedCount()
+	{
+		return fCachedCount.get();
+	}
+}
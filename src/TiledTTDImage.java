@@ -0,0 +1,647 @@
+/*
+ * This file is part of TTDViewer.
+ * TTDViewer is free software; you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, version 2.
+ * TTDViewer is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details. You should have received a copy of the GNU General Public License along with TTDViewer. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.awt.*;
+import java.awt.image.*;
+import javax.imageio.*;
+import javax.imageio.spi.*;
+import javax.imageio.stream.*;
+
+/**
+ * TTDImage which decodes its pixels lazily in tiles.
+ * Only tiles which are actually drawn get decoded, so huge images are displayed quickly.
+ * The resident tiles of all images share a memory limit, least recently used tiles are evicted
+ * to a temporary file or dropped to be decoded again.
+ */
+public class TiledTTDImage extends TTDImage {
+	/** Images with at least this number of pixels are decoded lazily by {@link TTDImage#createFrom(TTDPalette, File)}. */
+	public static final long LAZY_THRESHOLD = 4096 * 4096;
+
+	/** Source of the pixel data. */
+	public interface TileSource {
+		/**
+		 * Decode a region of the image.
+		 * @param aRegion Region to decode
+		 * @return Raster of the size of the region, with its origin at 0,0.
+		 */
+		Raster read(Rectangle aRegion) throws IOException;
+	}
+
+	/** Decodes regions of .pcx images, skipping rows via the row offsets remembered by {@link PCX.Decoder}. */
+	protected static class PCXSource implements TileSource {
+		private final PCX.Decoder fDecoder;
+
+		public PCXSource(PCX.Decoder aDecoder)
+		{
+			fDecoder = aDecoder;
+		}
+
+		@Override public Raster read(Rectangle aRegion) throws IOException
+		{
+			WritableRaster raster = Raster.createInterleavedRaster(DataBuffer.TYPE_BYTE, aRegion.width, aRegion.height, 1, null);
+			if (!fDecoder.decode(aRegion, 1, 1, raster, new Rectangle(0, 0, aRegion.width, aRegion.height))) {
+				throw new IOException("Invalid PCX data.");
+			}
+			return raster;
+		}
+	}
+
+	/**
+	 * Decodes regions using the source region of an ImageReadParam.
+	 * The file is reopened for every region, so it is not kept open while displayed.
+	 */
+	protected static class ImageReaderSource implements TileSource {
+		private final File fFile;
+		private final ImageReaderSpi fProvider;
+
+		public ImageReaderSource(File aFile, ImageReaderSpi aProvider)
+		{
+			fFile = aFile;
+			fProvider = aProvider;
+		}
+
+		@Override public Raster read(Rectangle aRegion) throws IOException
+		{
+			ImageInputStream stream = ImageIO.createImageInputStream(fFile);
+			ImageReader reader = fProvider.createReaderInstance();
+			try {
+				reader.setInput(stream, true, true);
+				ImageReadParam param = reader.getDefaultReadParam();
+				param.setSourceRegion(aRegion);
+				return reader.read(0, param).getRaster();
+			} finally {
+				reader.dispose();
+				stream.close();
+			}
+		}
+	}
+
+	/** Identifies a tile in {@link #fCache}. */
+	private static class TileKey {
+		public final TiledTTDImage owner;
+		public final int x;
+		public final int y;
+
+		public TileKey(TiledTTDImage aOwner, int aX, int aY)
+		{
+			owner = aOwner;
+			x = aX;
+			y = aY;
+		}
+
+		@Override public boolean equals(Object aOther)
+		{
+			if (!(aOther instanceof TileKey)) return false;
+			TileKey other = (TileKey)aOther;
+			return owner == other.owner && x == other.x && y == other.y;
+		}
+
+		@Override public int hashCode()
+		{
+			return System.identityHashCode(owner) * 31 + y * 65599 + x;
+		}
+	}
+
+	/**
+	 * Resident tiles of all images, in least-recently-used order.
+	 * This also serves as lock for the tile state of all images; decoding and file accesses are done without holding it.
+	 */
+	private static final LinkedHashMap<TileKey, WritableRaster> fCache = new LinkedHashMap<TileKey, WritableRaster>(64, 0.75f, true);
+
+	/** Number of bytes of all resident tiles. */
+	private static long fCacheSize = 0;
+
+	/** Maximum number of bytes of all resident tiles together. */
+	private static long fMemoryLimit = Math.max(64L << 20, Runtime.getRuntime().maxMemory() / 4);
+
+	/** Whether evicted tiles are written to a temporary file instead of decoding them again. */
+	private static boolean fSpillToDisk = true;
+
+	/** Image dimension */
+	protected final Dimension fSize;
+
+	/** Source to decode tiles from */
+	protected final TileSource fSource;
+
+	/** Convert decoded tiles from WIN to DOS palette. */
+	protected final boolean fConvertFromWin;
+
+	/** Resident tiles indexed by [tile row][tile column]; null if not decoded yet or evicted. */
+	protected final WritableRaster[][] fTiles;
+
+	/** Tiles which were evicted to {@link #fSpillFile}, indexed by [tile row][tile column]. */
+	private final boolean[][] fSpilled;
+
+	/**
+	 * Tiles which are being decoded, read back or spilled by some thread, indexed by [tile row][tile column].
+	 * Other threads wait for them, instead of decoding them as well.
+	 */
+	private final boolean[][] fLoading;
+
+	/** Tiles which could not be decoded on their last access, indexed by [tile row][tile column]. */
+	private final boolean[][] fFailed;
+
+	/** Number of tiles, whose colors are not counted yet. */
+	private int fUncountedTiles;
+
+	/**
+	 * Temporary file for evicted tiles; null if not created yet. Each tile has a fixed slot in the file.
+	 * Guarded by this image; it is accessed via positional reads and writes, so several threads can use it at once.
+	 */
+	private RandomAccessFile fSpillFile = null;
+
+	/** The temporary file behind {@link #fSpillFile}. */
+	private File fSpillFileName = null;
+
+	/**
+	 * Set by {@link #flush}; tiles which are decoded or read back afterwards are returned, but not kept, and nothing is spilled.
+	 * Written with the cache locked; read with either the cache or this image locked.
+	 */
+	private volatile boolean fFlushed = false;
+
+	/**
+	 * Create lazily decoded image.
+	 * @param aSize Image dimension
+	 * @param aSource Source to decode tiles from
+	 * @param aConvertFromWin Convert decoded tiles from WIN to DOS palette.
+	 * @see #createFrom
+	 */
+	public TiledTTDImage(Dimension aSize, TileSource aSource, boolean aConvertFromWin)
+	{
+		fSize = new Dimension(aSize);
+		fSource = aSource;
+		fConvertFromWin = aConvertFromWin;
+		int rows = (aSize.height + TILE_SIZE - 1) / TILE_SIZE;
+		int cols = (aSize.width + TILE_SIZE - 1) / TILE_SIZE;
+		fTiles = new WritableRaster[rows][cols];
+		fSpilled = new boolean[rows][cols];
+		fFailed = new boolean[rows][cols];
+		fLoading = new boolean[rows][cols];
+		fUncountedTiles = rows * cols;
+		fTileColors = new long[rows][cols][];
+		fColorHistogram = new long[256];
+	}
+
+	/**
+	 * Set the maximum memory used by the resident tiles of all images together.
+	 * If it is exceeded, the least recently used tiles are evicted.
+	 * @param aBytes Number of bytes.
+	 */
+	public static void setMemoryLimit(long aBytes)
+	{
+		ArrayList<Map.Entry<TileKey, WritableRaster>> evicted;
+		synchronized (fCache) {
+			fMemoryLimit = aBytes;
+			evicted = evictTiles();
+		}
+		spillTiles(evicted);
+	}
+
+	/** Get the maximum memory used by the resident tiles of all images together. */
+	public static long getMemoryLimit()
+	{
+		synchronized (fCache) {
+			return fMemoryLimit;
+		}
+	}
+
+	/** Get the memory currently used by the resident tiles of all images together. */
+	public static long getMemoryUsage()
+	{
+		synchronized (fCache) {
+			return fCacheSize;
+		}
+	}
+
+	/**
+	 * Select what happens to evicted tiles.
+	 * @param aSpill true to write them to a temporary file, false to decode them again from the source when needed.
+	 */
+	public static void setSpillToDisk(boolean aSpill)
+	{
+		synchronized (fCache) {
+			fSpillToDisk = aSpill;
+		}
+	}
+
+	/**
+	 * Create lazily decoded image from File.
+	 * The given image must use indexed colors from either TTD's DOS or WIN palette.
+	 * @param aPalette Palette to use.
+	 * @param aFile File to read from.
+	 * @param aReader Reader which detected the file format, with the file as input.
+	 * @return new image.
+	 */
+	public static TiledTTDImage createFrom(TTDPalette aPalette, File aFile, ImageReader aReader) throws Exception
+	{
+		Dimension size = new Dimension(aReader.getWidth(0), aReader.getHeight(0));
+		ColorModel color_model;
+		TileSource source;
+		if (aReader instanceof PCXImageReader) {
+			PCX.Decoder decoder = PCX.Decoder.create(PCX.readFile(aFile));
+			if (decoder == null) throw new Exception("Invalid PCX image.");
+			color_model = decoder.color_model;
+			source = new PCXSource(decoder);
+		} else {
+			ImageTypeSpecifier type = aReader.getImageTypes(0).next();
+			if (type.getBufferedImageType() != BufferedImage.TYPE_BYTE_INDEXED) throw new Exception("No indexed image.");
+			color_model = type.getColorModel();
+			source = new ImageReaderSource(aFile, aReader.getOriginatingProvider());
+		}
+		return new TiledTTDImage(size, source, isWinPalette(aPalette, color_model));
+	}
+
+	/**
+	 * Evict least recently used tiles until the memory limit is met.
+	 * Must be called with {@link #fCache} locked; the result must be passed to {@link #spillTiles} after unlocking it.
+	 * @return The evicted tiles, which have to be written to the temporary files.
+	 */
+	private static ArrayList<Map.Entry<TileKey, WritableRaster>> evictTiles()
+	{
+		ArrayList<Map.Entry<TileKey, WritableRaster>> evicted = new ArrayList<Map.Entry<TileKey, WritableRaster>>();
+		Iterator<Map.Entry<TileKey, WritableRaster>> it = fCache.entrySet().iterator();
+		while (fCacheSize > fMemoryLimit && it.hasNext()) {
+			Map.Entry<TileKey, WritableRaster> entry = it.next();
+			TileKey key = entry.getKey();
+			WritableRaster tile = entry.getValue();
+			it.remove();
+			fCacheSize -= tile.getWidth() * tile.getHeight();
+			key.owner.fTiles[key.y][key.x] = null;
+			if (fSpillToDisk) {
+				/* Other threads wait until the tile is written, and read it back then */
+				key.owner.fLoading[key.y][key.x] = true;
+				evicted.add(new AbstractMap.SimpleEntry<TileKey, WritableRaster>(key, tile));
+			}
+		}
+		return evicted;
+	}
+
+	/**
+	 * Write evicted tiles to the temporary files of their images.
+	 * Must be called without {@link #fCache} locked.
+	 * @param aTiles Tiles returned by {@link #evictTiles}.
+	 */
+	private static void spillTiles(ArrayList<Map.Entry<TileKey, WritableRaster>> aTiles)
+	{
+		if (aTiles.isEmpty()) return;
+		RandomAccessFile[] files = new RandomAccessFile[aTiles.size()];
+		for (int i = 0; i < files.length; i++) {
+			TileKey key = aTiles.get(i).getKey();
+			files[i] = key.owner.spillTile(key.x, key.y, aTiles.get(i).getValue());
+		}
+		synchronized (fCache) {
+			for (int i = 0; i < files.length; i++) {
+				TiledTTDImage owner = aTiles.get(i).getKey().owner;
+				int x = aTiles.get(i).getKey().x;
+				int y = aTiles.get(i).getKey().y;
+				owner.fLoading[y][x] = false;
+				/* The image may have been flushed meanwhile */
+				synchronized (owner) {
+					if (files[i] != null && files[i] == owner.fSpillFile) owner.fSpilled[y][x] = true;
+				}
+			}
+			fCache.notifyAll();
+		}
+	}
+
+	/** Get the offset of a tile in {@link #fSpillFile}. */
+	private long getSpillOffset(int aTileX, int aTileY)
+	{
+		return ((long)aTileY * fTiles[0].length + aTileX) * TILE_SIZE * TILE_SIZE;
+	}
+
+	/**
+	 * Write an evicted tile to {@link #fSpillFile}.
+	 * @return The file the tile was written to; null if that failed or the image is flushed, then the tile is decoded again when needed.
+	 */
+	private RandomAccessFile spillTile(int aTileX, int aTileY, WritableRaster aTile)
+	{
+		try {
+			RandomAccessFile file;
+			synchronized (this) {
+				/* Do not create a file, which nobody would delete */
+				if (fFlushed) return null;
+				if (fSpillFile == null) {
+					fSpillFileName = File.createTempFile("ttdviewer", ".tiles");
+					fSpillFileName.deleteOnExit();
+					fSpillFile = new RandomAccessFile(fSpillFileName, "rw");
+				}
+				file = fSpillFile;
+			}
+			ByteBuffer data = ByteBuffer.wrap(((DataBufferByte)aTile.getDataBuffer()).getData(), 0, aTile.getWidth() * aTile.getHeight());
+			long offset = getSpillOffset(aTileX, aTileY);
+			while (data.hasRemaining()) file.getChannel().write(data, offset + data.position());
+			return file;
+		} catch (IOException e) {
+			System.out.println("Spilling tile failed: " + e.getMessage());
+			return null;
+		}
+	}
+
+	/** Read a tile back from {@link #fSpillFile}; returns null if that fails. */
+	private WritableRaster unspillTile(int aTileX, int aTileY)
+	{
+		Rectangle bounds = getTileBounds(aTileX, aTileY);
+		WritableRaster tile = Raster.createInterleavedRaster(DataBuffer.TYPE_BYTE, bounds.width, bounds.height, 1, null);
+		try {
+			RandomAccessFile file;
+			synchronized (this) {
+				file = fSpillFile;
+			}
+			if (file == null) return null;
+			ByteBuffer data = ByteBuffer.wrap(((DataBufferByte)tile.getDataBuffer()).getData(), 0, bounds.width * bounds.height);
+			long offset = getSpillOffset(aTileX, aTileY);
+			while (data.hasRemaining()) {
+				if (file.getChannel().read(data, offset + data.position()) < 0) throw new EOFException();
+			}
+			return tile;
+		} catch (IOException e) {
+			System.out.println("Reading spilled tile failed: " + e.getMessage());
+			return null;
+		}
+	}
+
+	/** Make a tile resident and mark it as most recently used; unless the image is flushed. */
+	private void storeTile(int aTileX, int aTileY, WritableRaster aTile)
+	{
+		fFailed[aTileY][aTileX] = false;
+		if (fFlushed) return;
+		fTiles[aTileY][aTileX] = aTile;
+		if (fCache.put(new TileKey(this, aTileX, aTileY), aTile) == null) {
+			fCacheSize += aTile.getWidth() * aTile.getHeight();
+		}
+	}
+
+	/**
+	 * Make all tiles intersecting a region resident.
+	 * Evicted tiles are read from the temporary file; the bounding box of the remaining missing tiles is decoded at once.
+	 * Decoding and file accesses are done without holding the lock of the cache, so other images and regions can be drawn meanwhile.
+	 * Tiles, which are already loaded by another thread, are waited for.
+	 * If decoding fails, blank tiles are returned, which are not kept, so they are decoded again on the next access.
+	 * @param aRegion Region of the image, must be inside the image.
+	 * @return The tiles of the region indexed by [tile row - first row][tile column - first column].
+	 *         They stay valid, even if they are evicted meanwhile.
+	 */
+	protected WritableRaster[][] loadTiles(Rectangle aRegion)
+	{
+		int tx0 = aRegion.x / TILE_SIZE;
+		int ty0 = aRegion.y / TILE_SIZE;
+		int tx1 = (aRegion.x + aRegion.width - 1) / TILE_SIZE;
+		int ty1 = (aRegion.y + aRegion.height - 1) / TILE_SIZE;
+		WritableRaster[][] result = new WritableRaster[ty1 - ty0 + 1][tx1 - tx0 + 1];
+		boolean interrupted = false;
+
+		while (true) {
+			/* Claim the tiles, which are neither resident nor loaded by another thread */
+			ArrayList<Point> spilled = new ArrayList<Point>();
+			ArrayList<Point> claimed = new ArrayList<Point>();
+			synchronized (fCache) {
+				boolean waiting = false;
+				for (int ty = ty0; ty <= ty1; ty++) {
+					for (int tx = tx0; tx <= tx1; tx++) {
+						if (result[ty - ty0][tx - tx0] != null) continue;
+						WritableRaster tile = fTiles[ty][tx];
+						if (tile != null) {
+							storeTile(tx, ty, tile);
+							result[ty - ty0][tx - tx0] = tile;
+						} else if (fLoading[ty][tx]) {
+							waiting = true;
+						} else {
+							fLoading[ty][tx] = true;
+							if (fSpilled[ty][tx]) {
+								spilled.add(new Point(tx, ty));
+							} else {
+								claimed.add(new Point(tx, ty));
+							}
+						}
+					}
+				}
+				if (spilled.isEmpty() && claimed.isEmpty()) {
+					if (!waiting) break;
+					try {
+						fCache.wait();
+					} catch (InterruptedException e) {
+						interrupted = true;
+					}
+					continue;
+				}
+			}
+
+			/* Read back evicted tiles; decode them, if that fails */
+			WritableRaster[] unspilled = new WritableRaster[spilled.size()];
+			for (int i = 0; i < unspilled.length; i++) {
+				unspilled[i] = unspillTile(spilled.get(i).x, spilled.get(i).y);
+				if (unspilled[i] == null) claimed.add(spilled.get(i));
+			}
+
+			/* Decode the bounding box of the missing tiles at once */
+			Rectangle missing = null;
+			for (Point p : claimed) {
+				Rectangle bounds = getTileBounds(p.x, p.y);
+				missing = (missing == null) ? bounds : missing.union(bounds);
+			}
+			Raster decoded = null;
+			if (missing != null) {
+				try {
+					decoded = fSource.read(missing);
+				} catch (IOException e) {
+					System.out.println("Decoding " + missing + " failed: " + e.getMessage());
+				}
+			}
+			WritableRaster[] tiles = new WritableRaster[claimed.size()];
+			long[][] tile_colors = new long[claimed.size()][];
+			long[][] histograms = new long[claimed.size()][];
+			for (int i = 0; i < tiles.length; i++) {
+				Rectangle bounds = getTileBounds(claimed.get(i).x, claimed.get(i).y);
+				tiles[i] = Raster.createInterleavedRaster(DataBuffer.TYPE_BYTE, bounds.width, bounds.height, 1, null);
+				if (decoded == null) continue;
+
+				Raster part = decoded.createChild(bounds.x - missing.x, bounds.y - missing.y, bounds.width, bounds.height, 0, 0, null);
+				if (fConvertFromWin) {
+					TTDPalette.CONVERT_FROM_WIN.applyTo(part, tiles[i]);
+				} else {
+					tiles[i].setDataElements(0, 0, part);
+				}
+				tile_colors[i] = new long[4];
+				histograms[i] = new long[256];
+				countColors(tiles[i], histograms[i], tile_colors[i]);
+			}
+
+			ArrayList<Map.Entry<TileKey, WritableRaster>> evicted;
+			synchronized (fCache) {
+				for (int i = 0; i < unspilled.length; i++) {
+					Point p = spilled.get(i);
+					if (unspilled[i] == null) {
+						fSpilled[p.y][p.x] = false;
+						continue;
+					}
+					fLoading[p.y][p.x] = false;
+					storeTile(p.x, p.y, unspilled[i]);
+					result[p.y - ty0][p.x - tx0] = unspilled[i];
+				}
+				for (int i = 0; i < tiles.length; i++) {
+					Point p = claimed.get(i);
+					fLoading[p.y][p.x] = false;
+					result[p.y - ty0][p.x - tx0] = tiles[i];
+					if (decoded == null) {
+						fFailed[p.y][p.x] = true;
+						continue;
+					}
+					if (fTileColors[p.y][p.x] == null) {
+						/* Count each tile once, when it is decoded the first time */
+						for (int c = 0; c < 256; c++) fColorHistogram[c] += histograms[i][c];
+						fTileColors[p.y][p.x] = tile_colors[i];
+						fUncountedTiles--;
+					}
+					storeTile(p.x, p.y, tiles[i]);
+				}
+				evicted = evictTiles();
+				fCache.notifyAll();
+			}
+			spillTiles(evicted);
+		}
+
+		if (interrupted) Thread.currentThread().interrupt();
+		return result;
+	}
+
+	/**
+	 * Copy a region of the image into a new raster, decoding missing tiles.
+	 * @param aRegion Region of the image, must be inside the image.
+	 * @return Raster of the size of the region, with its origin at 0,0.
+	 */
+	protected WritableRaster copyRegion(Rectangle aRegion)
+	{
+		WritableRaster[][] tiles = loadTiles(aRegion);
+
+		int tx0 = aRegion.x / TILE_SIZE;
+		int ty0 = aRegion.y / TILE_SIZE;
+
+		/* Avoid the copy if the region is part of a single tile */
+		if (tiles.length == 1 && tiles[0].length == 1) {
+			return tiles[0][0].createWritableChild(aRegion.x - tx0 * TILE_SIZE, aRegion.y - ty0 * TILE_SIZE, aRegion.width, aRegion.height, 0, 0, null);
+		}
+
+		WritableRaster result = Raster.createInterleavedRaster(DataBuffer.TYPE_BYTE, aRegion.width, aRegion.height, 1, null);
+		for (int ty = 0; ty < tiles.length; ty++) {
+			for (int tx = 0; tx < tiles[ty].length; tx++) {
+				Rectangle part = getTileBounds(tx0 + tx, ty0 + ty).intersection(aRegion);
+				Raster child = tiles[ty][tx].createChild(part.x - (tx0 + tx) * TILE_SIZE, part.y - (ty0 + ty) * TILE_SIZE, part.width, part.height, 0, 0, null);
+				result.setDataElements(part.x - aRegion.x, part.y - aRegion.y, child);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Drop all resident and spilled tiles, also those which other threads are still loading.
+	 * The image can still be drawn, but then every access decodes the tiles again.
+	 */
+	@Override public void flush()
+	{
+		synchronized (fCache) {
+			fFlushed = true;
+			for (int ty = 0; ty < fTiles.length; ty++) {
+				for (int tx = 0; tx < fTiles[ty].length; tx++) {
+					WritableRaster tile = fTiles[ty][tx];
+					if (tile != null) {
+						fCache.remove(new TileKey(this, tx, ty));
+						fCacheSize -= tile.getWidth() * tile.getHeight();
+						fTiles[ty][tx] = null;
+					}
+					fSpilled[ty][tx] = false;
+				}
+			}
+		}
+		synchronized (this) {
+			if (fSpillFile != null) {
+				try {
+					fSpillFile.close();
+				} catch (IOException e) {}
+				fSpillFileName.delete();
+				fSpillFile = null;
+				fSpillFileName = null;
+			}
+		}
+	}
+
+	@Override public Dimension getSize()
+	{
+		return new Dimension(fSize);
+	}
+
+	/** Hashing would decode all tiles, so it is skipped. */
+	@Override public void computeTileHashes()
+	{
+	}
+
+	/** Hashing would decode all tiles, so it is skipped. */
+	@Override public long[][] hashTiles()
+	{
+		return null;
+	}
+
+	/** Tiled images are always replaced completely. */
+	@Override public ArrayList<Rectangle> patchFrom(TTDImage aImage)
+	{
+		return null;
+	}
+
+	@Override public boolean hasFailedTiles(Rectangle aRegion)
+	{
+		Rectangle region = aRegion.intersection(new Rectangle(fSize));
+		if (region.isEmpty()) return false;
+		synchronized (fCache) {
+			for (int ty = region.y / TILE_SIZE; ty <= (region.y + region.height - 1) / TILE_SIZE; ty++) {
+				for (int tx = region.x / TILE_SIZE; tx <= (region.x + region.width - 1) / TILE_SIZE; tx++) {
+					if (fFailed[ty][tx]) return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/** The colors are only known once all tiles were decoded. */
+	@Override public long[] getColorHistogram()
+	{
+		synchronized (fCache) {
+			return (fUncountedTiles == 0) ? fColorHistogram.clone() : null;
+		}
+	}
+
+	/** The colors of a tile are known once it was decoded. */
+	@Override public long[] getTileColors(int aTileX, int aTileY)
+	{
+		synchronized (fCache) {
+			return fTileColors[aTileY][aTileX];
+		}
+	}
+
+	/**
+	 * Returns a copy of the complete image.
+	 * Note: This decodes all tiles, and modifications to the returned raster do not affect the image.
+	 */
+	@Override public WritableRaster getRaster()
+	{
+		return copyRegion(new Rectangle(fSize));
+	}
+
+	@Override public BufferedImage getImage(ColorModel aColorModel)
+	{
+		return new BufferedImage(aColorModel, getRaster(), false, null);
+	}
+
+	@Override public BufferedImage getImage(ColorModel aColorModel, Rectangle rect)
+	{
+		Rectangle valid = rect.intersection(new Rectangle(fSize));
+		return new BufferedImage(aColorModel, copyRegion(valid), false, null);
+	}
+}